@@ -21,6 +21,7 @@ import android.support.v7.widget.Toolbar;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.HapticFeedbackConstants;
 import android.view.KeyEvent;
 import android.view.Menu;
@@ -49,7 +50,10 @@ import java.io.StringWriter;
 
 public class RingdroidEditActivity extends AppCompatActivity implements MarkerView.MarkerListener, WaveformView.WaveformListener {
     private long mLoadingLastUpdateTime;
+    private long mFrameGainsLastUpdateTime;
+    private double mLoadingProgress;
     private boolean mLoadingKeepGoing;
+    private boolean mSoundFileOpened;
     private long mRecordingLastUpdateTime;
     private boolean mRecordingKeepGoing;
     private double mRecordingTime;
@@ -105,6 +109,8 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
     private int mMarkerRightInset = 0;
     private int mMarkerTopOffset = 0;
     private int mMarkerBottomOffset = 0;
+    private int mMarkerShift;
+    private boolean mFrameScheduled;
 
     private Thread mLoadSoundFileThread;
     private Thread mRecordAudioThread;
@@ -139,7 +145,6 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         mKeyDown = false;
         mHandler = new Handler();
         loadGui();
-        mHandler.postDelayed(mTimerRunnable, 100);
 
         if (!mFilename.equals("record")) {
             loadFromFile();
@@ -161,6 +166,8 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
     protected void onDestroy() {
         Log.v("Ringdroid", "EditActivity OnDestroy");
 
+        Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+        mFrameScheduled = false;
         mLoadingKeepGoing = false;
         mRecordingKeepGoing = false;
         closeThread(mLoadSoundFileThread);
@@ -186,6 +193,11 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
             mPlayer = null;
         }
 
+        if (mSoundFile != null) {
+            mSoundFile.release();
+            mSoundFile = null;
+        }
+
         super.onDestroy();
     }
 
@@ -201,7 +213,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
     @Override
     public void onConfigurationChanged(Configuration newConfig) {
         Log.v("Ringdroid", "EditActivity onConfigurationChanged");
-        final int saveZoomLevel = mWaveformView.getZoomLevel();
+        final double saveZoomFactor = mWaveformView.getZoomFactor();
         super.onConfigurationChanged(newConfig);
 
         loadGui();
@@ -211,7 +223,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                 mStartMarker.requestFocus();
                 markerFocus(mStartMarker);
 
-                mWaveformView.setZoomLevel(saveZoomLevel);
+                mWaveformView.setZoomFactor(saveZoomFactor);
                 mWaveformView.recomputeHeights(mDensity);
 
                 updateDisplay();
@@ -262,12 +274,8 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
 
     public void waveformDraw() {
         mWidth = mWaveformView.getMeasuredWidth();
-        if (mOffsetGoal != mOffset && !mKeyDown)
-            updateDisplay();
-        else if (mIsPlaying) {
-            updateDisplay();
-        } else if (mFlingVelocity != 0) {
-            updateDisplay();
+        if (isAnimating()) {
+            scheduleFrame();
         }
     }
 
@@ -277,14 +285,17 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         mTouchInitialOffset = mOffset;
         mFlingVelocity = 0;
         mWaveformTouchStartMsec = getCurrentTime();
+        startScrub();
     }
 
     public void waveformTouchMove(float x) {
         mOffset = trap((int) (mTouchInitialOffset + (mTouchStart - x)));
+        scrubTo(mOffset + mWidth / 2);
         updateDisplay();
     }
 
     public void waveformTouchEnd() {
+        stopScrub();
         mTouchDragging = false;
         mOffsetGoal = mOffset;
 
@@ -306,24 +317,14 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
     }
 
     public void waveformFling(float vx) {
+        stopScrub();
         mTouchDragging = false;
         mOffsetGoal = mOffset;
         mFlingVelocity = (int) (-vx);
         updateDisplay();
     }
 
-    public void waveformZoomIn() {
-        mWaveformView.zoomIn();
-        mStartPos = mWaveformView.getStart();
-        mEndPos = mWaveformView.getEnd();
-        mMaxPos = mWaveformView.maxPos();
-        mOffset = mWaveformView.getOffset();
-        mOffsetGoal = mOffset;
-        updateDisplay();
-    }
-
-    public void waveformZoomOut() {
-        mWaveformView.zoomOut();
+    public void waveformZoomChanged() {
         mStartPos = mWaveformView.getStart();
         mEndPos = mWaveformView.getEnd();
         mMaxPos = mWaveformView.maxPos();
@@ -340,6 +341,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         mTouchStart = x;
         mTouchInitialStartPos = mStartPos;
         mTouchInitialEndPos = mEndPos;
+        startScrub();
     }
 
     public void markerTouchMove(MarkerView marker, float x) {
@@ -354,10 +356,12 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                 mEndPos = mStartPos;
         }
 
+        scrubTo(marker == mStartMarker ? mStartPos : mEndPos);
         updateDisplay();
     }
 
     public void markerTouchEnd(MarkerView marker) {
+        stopScrub();
         mTouchDragging = false;
         if (marker == mStartMarker) {
             setOffsetGoalStart();
@@ -366,6 +370,26 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         }
     }
 
+    // Drags give audible feedback of the position under the marker, or under the middle of
+    // the waveform when it is scrolled, unless the file is already playing.
+    private void startScrub() {
+        if (mPlayer != null && !mIsPlaying) {
+            mPlayer.startScrub();
+        }
+    }
+
+    private void scrubTo(int pixels) {
+        if (mPlayer != null && mPlayer.isScrubbing()) {
+            mPlayer.scrubTo(mWaveformView.pixelsToMillisecs(pixels));
+        }
+    }
+
+    private void stopScrub() {
+        if (mPlayer != null) {
+            mPlayer.stopScrub();
+        }
+    }
+
     public void markerLeft(MarkerView marker, int velocity) {
         mKeyDown = true;
 
@@ -508,7 +532,10 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
             mMaxPos = mWaveformView.maxPos();
         }
 
+        mMarkerShift = Utils.getDimensionInPixel(mContext, 42);
+
         mStartMarker = (MarkerView) findViewById(R.id.startmarker);
+        placeMarker(mStartMarker);
         mStartMarker.setListener(this);
         mStartMarker.setAlpha(1f);
         mStartMarker.setFocusable(true);
@@ -516,6 +543,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         mStartVisible = true;
 
         mEndMarker = (MarkerView) findViewById(R.id.endmarker);
+        placeMarker(mEndMarker);
         mEndMarker.setListener(this);
         mEndMarker.setAlpha(1f);
         mEndMarker.setFocusable(true);
@@ -525,6 +553,15 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         updateDisplay();
     }
 
+    // Pins a marker to the top left corner of the editor; updateDisplay() moves it from there.
+    private void placeMarker(MarkerView marker) {
+        RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(
+                RelativeLayout.LayoutParams.WRAP_CONTENT,
+                RelativeLayout.LayoutParams.WRAP_CONTENT);
+        params.setMargins(0, 0, 0, 0);
+        marker.setLayoutParams(params);
+    }
+
     private void loadFromFile() {
         mFile = new File(mFilename);
         getSupportActionBar().setTitle(mFile.getName().substring(0, mFile.getName().lastIndexOf(".")));
@@ -541,41 +578,47 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         setTitle(titleLabel);
 
         mLoadingLastUpdateTime = getCurrentTime();
+        mFrameGainsLastUpdateTime = 0;
+        mLoadingProgress = 0;
         mLoadingKeepGoing = true;
         mFinishActivity = false;
-        mProgressDialog = new ProgressDialog(RingdroidEditActivity.this);
-        mProgressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
-        mProgressDialog.setTitle(R.string.progress_dialog_loading);
-        mProgressDialog.setCancelable(true);
-        mProgressDialog.setOnCancelListener(
-                new DialogInterface.OnCancelListener() {
-                    public void onCancel(DialogInterface dialog) {
-                        mLoadingKeepGoing = false;
-                        mFinishActivity = true;
-                    }
-                });
-        mProgressDialog.show();
+        mInfo.setText(R.string.progress_dialog_loading);
 
         final SoundFile.ProgressListener listener =
                 new SoundFile.ProgressListener() {
                     public boolean reportProgress(double fractionComplete) {
                         long now = getCurrentTime();
                         if (now - mLoadingLastUpdateTime > 100) {
-                            mProgressDialog.setProgress(
-                                    (int) (mProgressDialog.getMax() * fractionComplete));
+                            mLoadingProgress = fractionComplete;
                             mLoadingLastUpdateTime = now;
                         }
                         return mLoadingKeepGoing;
                     }
                 };
 
+        // The waveform is shown, and refreshed every 100 ms, while the file is still decoding.
+        final SoundFile.FrameGainsListener frameGainsListener =
+                new SoundFile.FrameGainsListener() {
+                    public void onFrameGainsUpdated(final SoundFile soundFile, int numFrames) {
+                        long now = getCurrentTime();
+                        if (now - mFrameGainsLastUpdateTime > 100) {
+                            mFrameGainsLastUpdateTime = now;
+                            mHandler.post(new Runnable() {
+                                public void run() {
+                                    showPartialSoundFile(soundFile);
+                                }
+                            });
+                        }
+                    }
+                };
+
         mLoadSoundFileThread = new Thread() {
             public void run() {
                 try {
-                    mSoundFile = SoundFile.create(mFile.getAbsolutePath(), listener);
+                    mSoundFile = SoundFile.create(mFile.getAbsolutePath(), getCacheDir(),
+                            listener, frameGainsListener);
 
                     if (mSoundFile == null) {
-                        mProgressDialog.dismiss();
                         String name = mFile.getName().toLowerCase();
                         String[] components = name.split("\\.");
                         String err;
@@ -596,9 +639,11 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                         mHandler.post(runnable);
                         return;
                     }
-                    mPlayer = new SamplePlayer(mSoundFile);
+                    // Files reopened from the peak cache are decoded on first playback.
+                    if (mSoundFile.hasSamples()) {
+                        mPlayer = new SamplePlayer(mSoundFile);
+                    }
                 } catch (final Exception e) {
-                    mProgressDialog.dismiss();
                     e.printStackTrace();
                     mInfoContent = e.toString();
                     runOnUiThread(new Runnable() {
@@ -615,7 +660,6 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                     mHandler.post(runnable);
                     return;
                 }
-                mProgressDialog.dismiss();
                 if (mLoadingKeepGoing) {
                     Runnable runnable = new Runnable() {
                         public void run() {
@@ -623,14 +667,32 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                         }
                     };
                     mHandler.post(runnable);
-                } else if (mFinishActivity) {
-                    RingdroidEditActivity.this.finish();
                 }
             }
         };
         mLoadSoundFileThread.start();
     }
 
+    private void showPartialSoundFile(SoundFile soundFile) {
+        if (!mLoadingKeepGoing || mSoundFileOpened) {
+            return;
+        }
+        if (!mWaveformView.hasSoundFile()) {
+            mWaveformView.setSoundFile(soundFile);
+            mWaveformView.recomputeHeights(mDensity);
+            mOffset = 0;
+            mOffsetGoal = 0;
+            mFlingVelocity = 0;
+            resetPositions();
+        } else {
+            mWaveformView.updateFrameGains();
+        }
+        mMaxPos = mWaveformView.maxPos();
+        mInfo.setText(getResources().getString(R.string.progress_dialog_loading) + " " +
+                (int) (100 * mLoadingProgress) + "%");
+        updateDisplay();
+    }
+
     private void recordAudio() {
         mFile = null;
         mTitle = null;
@@ -736,19 +798,25 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
     }
 
     private void finishOpeningSoundFile() {
-        mWaveformView.setSoundFile(mSoundFile);
-        mWaveformView.recomputeHeights(mDensity);
+        mSoundFileOpened = true;
+        if (mWaveformView.hasSoundFile()) {
+            // Already shown while decoding: keep the user's view and selection.
+            mWaveformView.finishFrameGains();
+        } else {
+            mWaveformView.setSoundFile(mSoundFile);
+            mWaveformView.recomputeHeights(mDensity);
+
+            mTouchDragging = false;
+
+            mOffset = 0;
+            mOffsetGoal = 0;
+            mFlingVelocity = 0;
+            resetPositions();
+        }
 
         mMaxPos = mWaveformView.maxPos();
         mLastDisplayedStartPos = -1;
         mLastDisplayedEndPos = -1;
-
-        mTouchDragging = false;
-
-        mOffset = 0;
-        mOffsetGoal = 0;
-        mFlingVelocity = 0;
-        resetPositions();
         if (mEndPos > mMaxPos)
             mEndPos = mMaxPos;
 
@@ -763,7 +831,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         updateDisplay();
     }
 
-    private synchronized void updateDisplay() {
+    private void updateDisplay() {
         if (mIsPlaying) {
             int now = mPlayer.getCurrentPosition();
             int frames = mWaveformView.millisecsToPixels(now);
@@ -819,23 +887,13 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         mWaveformView.setParameters(mStartPos, mEndPos, mOffset);
         mWaveformView.invalidate();
 
-        mStartMarker.setContentDescription(
-                getResources().getText(R.string.start_marker) + " " +
-                        formatTime(mStartPos));
-        mEndMarker.setContentDescription(
-                getResources().getText(R.string.end_marker) + " " +
-                        formatTime(mEndPos));
+        updateMarkerLabels();
 
         int startX = mStartPos - mOffset - mMarkerLeftInset;
         if (startX + mStartMarker.getWidth() >= 0) {
             if (!mStartVisible) {
-                // Delay this to avoid flicker
-                mHandler.postDelayed(new Runnable() {
-                    public void run() {
-                        mStartVisible = true;
-                        mStartMarker.setAlpha(1f);
-                    }
-                }, 0);
+                mStartVisible = true;
+                mStartMarker.setAlpha(1f);
             }
         } else {
             if (mStartVisible) {
@@ -848,13 +906,8 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         int endX = mEndPos - mOffset - mEndMarker.getWidth() + mMarkerRightInset;
         if (endX + mEndMarker.getWidth() >= 0) {
             if (!mEndVisible) {
-                // Delay this to avoid flicker
-                mHandler.postDelayed(new Runnable() {
-                    public void run() {
-                        mEndVisible = true;
-                        mEndMarker.setAlpha(1f);
-                    }
-                }, 0);
+                mEndVisible = true;
+                mEndMarker.setAlpha(1f);
             }
         } else {
             if (mEndVisible) {
@@ -864,45 +917,62 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
             endX = 0;
         }
 
-        RelativeLayout.LayoutParams params = new RelativeLayout.LayoutParams(
-                RelativeLayout.LayoutParams.WRAP_CONTENT,
-                RelativeLayout.LayoutParams.WRAP_CONTENT);
-
-        params.setMargins(
-                startX - Utils.getDimensionInPixel(mContext, 42),
-                mMarkerTopOffset,
-                0,
-                0);
+        // The markers keep their layout; moving them is only a change of translation, which
+        // does not trigger a layout pass.
+        mStartMarker.setTranslationX(startX - mMarkerShift);
+        mStartMarker.setTranslationY(mMarkerTopOffset);
+        mEndMarker.setTranslationX(endX + mMarkerShift);
+        mEndMarker.setTranslationY(mWaveformView.getMeasuredHeight() - mEndMarker.getHeight());
 
-        mStartMarker.setLayoutParams(params);
-        params = new RelativeLayout.LayoutParams(
-                RelativeLayout.LayoutParams.WRAP_CONTENT,
-                RelativeLayout.LayoutParams.WRAP_CONTENT);
+        if (isAnimating()) {
+            scheduleFrame();
+        }
+    }
 
-        params.setMargins(endX + Utils.getDimensionInPixel(mContext, 42),
-                mWaveformView.getMeasuredHeight() - mEndMarker.getHeight(), 0,
-                0);
+    // Keeps running only while something on screen moves on its own: playback, a fling, or
+    // the offset easing towards mOffsetGoal.
+    private boolean isAnimating() {
+        return mIsPlaying || mFlingVelocity != 0 ||
+                (mOffsetGoal != mOffset && !mKeyDown && !mTouchDragging);
+    }
 
-        mEndMarker.setLayoutParams(params);
+    private void scheduleFrame() {
+        if (!mFrameScheduled) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
     }
 
-    private Runnable mTimerRunnable = new Runnable() {
-        public void run() {
-            if (mStartPos != mLastDisplayedStartPos &&
-                    !mStartText.hasFocus()) {
+    private Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            if (mWaveformView != null) {
+                updateDisplay();
+            }
+        }
+    };
+
+    private void updateMarkerLabels() {
+        if (mStartPos != mLastDisplayedStartPos) {
+            mStartMarker.setContentDescription(
+                    getResources().getText(R.string.start_marker) + " " +
+                            formatTime(mStartPos));
+            if (!mStartText.hasFocus()) {
                 mStartText.setText(formatTime(mStartPos));
                 mLastDisplayedStartPos = mStartPos;
             }
+        }
 
-            if (mEndPos != mLastDisplayedEndPos &&
-                    !mEndText.hasFocus()) {
+        if (mEndPos != mLastDisplayedEndPos) {
+            mEndMarker.setContentDescription(
+                    getResources().getText(R.string.end_marker) + " " +
+                            formatTime(mEndPos));
+            if (!mEndText.hasFocus()) {
                 mEndText.setText(formatTime(mEndPos));
                 mLastDisplayedEndPos = mEndPos;
             }
-
-            mHandler.postDelayed(mTimerRunnable, 100);
         }
-    };
+    }
 
     private void enableDisableButtons() {
         if (mIsPlaying) {
@@ -1002,7 +1072,10 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         }
 
         if (mPlayer == null) {
-           return;
+            if (mSoundFileOpened) {
+                decodeSamplesAndPlay(startPosition);
+            }
+            return;
         }
 
         try {
@@ -1032,6 +1105,61 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
         }
     }
 
+    private void decodeSamplesAndPlay(final int startPosition) {
+        if (mLoadSoundFileThread != null && mLoadSoundFileThread.isAlive()) {
+            return;
+        }
+        mLoadingLastUpdateTime = getCurrentTime();
+        mLoadingKeepGoing = true;
+        mInfo.setText(R.string.progress_dialog_loading);
+
+        final SoundFile.ProgressListener listener =
+                new SoundFile.ProgressListener() {
+                    public boolean reportProgress(final double fractionComplete) {
+                        long now = getCurrentTime();
+                        if (now - mLoadingLastUpdateTime > 100) {
+                            mLoadingLastUpdateTime = now;
+                            runOnUiThread(new Runnable() {
+                                public void run() {
+                                    mInfo.setText(getResources().getString(
+                                            R.string.progress_dialog_loading) + " " +
+                                            (int) (100 * fractionComplete) + "%");
+                                }
+                            });
+                        }
+                        return mLoadingKeepGoing;
+                    }
+                };
+
+        mLoadSoundFileThread = new Thread() {
+            public void run() {
+                try {
+                    mSoundFile.decodeSamples(listener);
+                    if (!mSoundFile.hasSamples()) {
+                        return;
+                    }
+                    mPlayer = new SamplePlayer(mSoundFile);
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                    Runnable runnable = new Runnable() {
+                        public void run() {
+                            showFinalAlert(e, getResources().getText(R.string.read_error));
+                        }
+                    };
+                    mHandler.post(runnable);
+                    return;
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mInfo.setText(mCaption);
+                        onPlay(startPosition);
+                    }
+                });
+            }
+        };
+        mLoadSoundFileThread.start();
+    }
+
     private void showFinalAlert(Exception e, CharSequence message) {
         CharSequence title;
 
@@ -1137,6 +1265,28 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
 
         mSaveSoundFileThread = new Thread() {
             public void run() {
+                // Keep the original codec when the frames can be copied as they are.
+                String losslessExtension = mSoundFile.getLosslessFileExtension();
+                if (losslessExtension != null) {
+                    String outPath = makeRingtoneFilename(title, losslessExtension);
+                    if (outPath != null) {
+                        File outFile = new File(outPath);
+                        try {
+                            mSoundFile.WriteLosslessFile(
+                                    outFile, startFrame, endFrame - startFrame);
+                            SoundFile.verify(outFile);
+                            finishSavingRingtone(title, outPath, duration);
+                            return;
+                        } catch (Exception e) {
+                            if (outFile.exists()) {
+                                outFile.delete();
+                            }
+                            Log.e("Ringdroid", "Error: Failed to copy frames to " + outPath);
+                            Log.e("Ringdroid", getStackTrace(e));
+                        }
+                    }
+                }
+
                 String outPath = makeRingtoneFilename(title, ".m4a");
                 if (outPath == null) {
                     Runnable runnable = new Runnable() {
@@ -1151,6 +1301,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                 Boolean fallbackToWAV = false;
                 try {
                     mSoundFile.WriteFile(outFile, startFrame, endFrame - startFrame);
+                    SoundFile.verify(outFile);
                 } catch (Exception e) {
                     if (outFile.exists()) {
                         outFile.delete();
@@ -1176,6 +1327,7 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                     outFile = new File(outPath);
                     try {
                         mSoundFile.WriteWAVFile(outFile, startFrame, endFrame - startFrame);
+                        SoundFile.verify(outFile);
                     } catch (Exception e) {
                         mProgressDialog.dismiss();
                         if (outFile.exists()) {
@@ -1208,47 +1360,26 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
                     }
                 }
 
-                try {
-                    final SoundFile.ProgressListener listener =
-                            new SoundFile.ProgressListener() {
-                                public boolean reportProgress(double frac) {
-                                    return true;
-                                }
-                            };
-                    SoundFile.create(outPath, listener);
-                } catch (final Exception e) {
-                    mProgressDialog.dismiss();
-                    e.printStackTrace();
-                    mInfoContent = e.toString();
-                    runOnUiThread(new Runnable() {
-                        public void run() {
-                            mInfo.setText(mInfoContent);
-                        }
-                    });
-
-                    Runnable runnable = new Runnable() {
-                        public void run() {
-                            showFinalAlert(e, getResources().getText(R.string.write_error));
-                        }
-                    };
-                    mHandler.post(runnable);
-                    return;
-                }
+                finishSavingRingtone(title, outPath, duration);
+            }
+        };
+        mSaveSoundFileThread.start();
+    }
 
-                mProgressDialog.dismiss();
+    // Runs on the save thread once outPath has been written and verified.
+    private void finishSavingRingtone(final CharSequence title,
+                                      final String outPath,
+                                      final int duration) {
+        mProgressDialog.dismiss();
 
-                final String finalOutPath = outPath;
-                Runnable runnable = new Runnable() {
-                    public void run() {
-                        afterSavingRingtone(title,
-                                finalOutPath,
-                                duration);
-                    }
-                };
-                mHandler.post(runnable);
+        Runnable runnable = new Runnable() {
+            public void run() {
+                afterSavingRingtone(title,
+                        outPath,
+                        duration);
             }
         };
-        mSaveSoundFileThread.start();
+        mHandler.post(runnable);
     }
 
     private void afterSavingRingtone(CharSequence title,
@@ -1382,6 +1513,9 @@ public class RingdroidEditActivity extends AppCompatActivity implements MarkerVi
     }
 
     private void onSave() {
+        if (!mSoundFileOpened) {
+            return;
+        }
         if (mIsPlaying) {
             handlePause();
         }
@@ -33,7 +33,10 @@ import com.RingMake.Adapters.SongsAdapter;
 import com.RingMake.Models.SongsModel;
 import com.mp3cutter.ringtonemaker.R;
 import com.RingMake.Ringdroid.Constants;
+import com.RingMake.Ringdroid.MediaLibrary;
+import com.RingMake.Ringdroid.SongIndex;
 import com.RingMake.Ringdroid.Utils;
+import com.RingMake.Ringdroid.soundfile.CodecPool;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -61,6 +64,8 @@ public class RingdroidSelectActivity extends AppCompatActivity implements Search
     private RecyclerView mRecyclerView;
     private SongsAdapter mSongsAdapter;
     private ArrayList<SongsModel> mData;
+    private SongIndex mSongIndex;
+    private String mQuery;
     private Context mContext;
 
     private Toolbar mToolbar;
@@ -125,6 +130,21 @@ public class RingdroidSelectActivity extends AppCompatActivity implements Search
     }
 
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // Opening and saving a file both need codecs; allocate them while the user browses.
+        CodecPool.prewarm();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (level >= TRIM_MEMORY_UI_HIDDEN) {
+            CodecPool.releaseIdle();
+        }
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String permissions[], int[] grantResults) {
         switch (requestCode) {
@@ -171,8 +191,20 @@ public class RingdroidSelectActivity extends AppCompatActivity implements Search
     }
 
     private void loadData() {
-        mData.addAll(Utils.getSongList(getApplicationContext(), true, null));
-        mData.addAll(Utils.getSongList(getApplicationContext(), false, null));
+        MediaLibrary.load(this, new MediaLibrary.Listener() {
+            public void onLibraryLoaded(SongIndex index) {
+                if (isFinishing()) {
+                    return;
+                }
+                mSongIndex = index;
+                showSongs();
+            }
+        });
+    }
+
+    private void showSongs() {
+        mData.clear();
+        mData.addAll(mSongIndex.search(mQuery));
         mSongsAdapter.updateData(mData);
     }
 
@@ -450,10 +482,11 @@ public class RingdroidSelectActivity extends AppCompatActivity implements Search
 
     @Override
     public boolean onQueryTextChange(String newText) {
-        mData.clear();
-        mData.addAll(Utils.getSongList(getApplicationContext(), true, newText));
-        mData.addAll(Utils.getSongList(getApplicationContext(), false, newText));
-        mSongsAdapter.updateData(mData);
+        // Until the library is loaded, the query is applied when it arrives.
+        mQuery = newText;
+        if (mSongIndex != null) {
+            showSongs();
+        }
         return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.RingMake.Ringdroid;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.RingMake.Models.SongsModel;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Reads the songs of the internal and external media stores off the main thread and indexes
+// them, so searching the list never goes back to the content provider.
+public class MediaLibrary {
+    public interface Listener {
+        void onLibraryLoaded(SongIndex index);
+    }
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private MediaLibrary() {
+    }
+
+    // Calls listener on the main thread once the library is indexed.
+    public static void load(Context context, final Listener listener) {
+        final Context appContext = context.getApplicationContext();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                ArrayList<SongsModel> songs = Utils.getSongList(appContext, true, null);
+                songs.addAll(Utils.getSongList(appContext, false, null));
+                final SongIndex index = new SongIndex(songs);
+                handler.post(new Runnable() {
+                    public void run() {
+                        listener.onLibraryLoaded(index);
+                    }
+                });
+            }
+        });
+    }
+}
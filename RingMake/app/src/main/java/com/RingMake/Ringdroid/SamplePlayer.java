@@ -2,68 +2,109 @@ package com.RingMake.Ringdroid;
 
 import android.media.AudioFormat;
 import android.media.AudioManager;
+import android.media.AudioTimestamp;
 import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 
+import com.RingMake.audiocore.SampleBuffer;
 import com.RingMake.Ringdroid.soundfile.SoundFile;
 
-import java.nio.ShortBuffer;
+import java.util.Arrays;
 
+// Plays PCM through a small AudioTrack buffer fed in chunks of half its size by one audio
+// thread that lives as long as the player. start(), pause(), seekTo() and the scrub calls only
+// post requests to that thread, which owns every AudioTrack call except the position queries.
 public class SamplePlayer {
     public interface OnCompletionListener {
         public void onCompletion();
     }
 
-    private ShortBuffer mSamples;
+    private static final long SCRUB_IDLE_MS = 60;
+    private static final int TRACK_IDLE = 0;
+    private static final int TRACK_PLAYING = 1;
+    private static final int TRACK_SCRUBBING = 2;
+
+    private SampleBuffer mSamples;
     private int mSampleRate;
     private int mChannels;
     private int mNumSamples;
     private AudioTrack mAudioTrack;
     private short[] mBuffer;
-    private int mPlaybackStart;
+    private int mChunkFrames;
+    private int mBufferFrames;
+    private AudioTimestamp mTimestamp;
+    private Handler mHandler;
     private Thread mPlayThread;
-    private boolean mKeepPlaying;
     private OnCompletionListener mListener;
 
-    public SamplePlayer(ShortBuffer samples, int sampleRate, int channels, int numSamples) {
+    // Requests from the caller, guarded by mLock.
+    private final Object mLock = new Object();
+    private boolean mPlaying;
+    private boolean mPaused;
+    private boolean mReleased;
+    private int mPlaybackPosition;
+    private int mSeekPosition;
+    private boolean mScrubbing;
+    private int mScrubPosition;
+    private long mScrubMoveTime;
+
+    // Scrub grains are two chunks long, Hann windowed and overlapped by half, so consecutive
+    // grains sum to unity gain. Used by the audio thread only.
+    private short[] mGrain;
+    private float[] mGrainTail;
+    private float[] mWindow;
+
+    // Written by the audio thread: the input frame that the track's head position 0 stands
+    // for, and how many frames have been written to the track since it was last flushed.
+    private volatile int mTrackStart;
+    private volatile int mFramesWritten;
+
+    public SamplePlayer(SampleBuffer samples, int sampleRate, int channels, int numSamples) {
         mSamples = samples;
         mSampleRate = sampleRate;
         mChannels = channels;
         mNumSamples = numSamples;
-        mPlaybackStart = 0;
+        mPlaybackPosition = 0;
+        mSeekPosition = -1;
 
+        int channelConfig =
+                mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
         int bufferSize = AudioTrack.getMinBufferSize(
-                mSampleRate,
-                mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
-                AudioFormat.ENCODING_PCM_16BIT);
-        if (bufferSize < mChannels * mSampleRate * 2) {
-            bufferSize = mChannels * mSampleRate * 2;
+                mSampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
+        int frameSize = 2 * mChannels;
+        mBufferFrames = Math.max(bufferSize / frameSize, 2 * 256);
+        mChunkFrames = mBufferFrames / 2;
+        mBuffer = new short[mChunkFrames * mChannels];
+        mGrain = new short[2 * mChunkFrames * mChannels];
+        mGrainTail = new float[mChunkFrames * mChannels];
+        mWindow = new float[2 * mChunkFrames];
+        for (int i = 0; i < mWindow.length; i++) {
+            mWindow[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / mWindow.length));
         }
-        mBuffer = new short[bufferSize / 2];
         mAudioTrack = new AudioTrack(
                 AudioManager.STREAM_MUSIC,
                 mSampleRate,
-                mChannels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
+                channelConfig,
                 AudioFormat.ENCODING_PCM_16BIT,
-                mBuffer.length * 2,
+                mBufferFrames * frameSize,
                 AudioTrack.MODE_STREAM);
-        mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1);
-        mAudioTrack.setPlaybackPositionUpdateListener(
-                new AudioTrack.OnPlaybackPositionUpdateListener() {
-                    @Override
-                    public void onPeriodicNotification(AudioTrack track) {
-                    }
-
-                    @Override
-                    public void onMarkerReached(AudioTrack track) {
-                        stop();
-                        if (mListener != null) {
-                            mListener.onCompletion();
-                        }
-                    }
-                });
-        mPlayThread = null;
-        mKeepPlaying = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            mTimestamp = new AudioTimestamp();
+        }
+        mHandler = new Handler(Looper.getMainLooper());
         mListener = null;
+
+        mPlayThread = new Thread("SamplePlayer") {
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                runAudioLoop();
+            }
+        };
+        mPlayThread.start();
     }
 
     public SamplePlayer(SoundFile sf) {
@@ -75,84 +116,291 @@ public class SamplePlayer {
     }
 
     public boolean isPlaying() {
-        return mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        synchronized (mLock) {
+            return mPlaying;
+        }
     }
 
     public boolean isPaused() {
-        return mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PAUSED;
+        synchronized (mLock) {
+            return mPaused;
+        }
     }
 
     public void start() {
-        if (isPlaying()) {
-            return;
-        }
-        mKeepPlaying = true;
-        mAudioTrack.flush();
-        mAudioTrack.play();
-        mPlayThread = new Thread() {
-            public void run() {
-                int position = mPlaybackStart * mChannels;
-                mSamples.position(position);
-                int limit = mNumSamples * mChannels;
-                while (mSamples.position() < limit && mKeepPlaying) {
-                    int numSamplesLeft = limit - mSamples.position();
-                    if (numSamplesLeft >= mBuffer.length) {
-                        mSamples.get(mBuffer);
-                    } else {
-                        for (int i = numSamplesLeft; i < mBuffer.length; i++) {
-                            mBuffer[i] = 0;
-                        }
-                        mSamples.get(mBuffer, 0, numSamplesLeft);
-                    }
-                    mAudioTrack.write(mBuffer, 0, mBuffer.length);
-                }
+        synchronized (mLock) {
+            if (mPlaying || mReleased) {
+                return;
             }
-        };
-        mPlayThread.start();
+            mPlaying = true;
+            mPaused = false;
+            mScrubbing = false;
+            // Reads as a pending seek until the audio thread restarts the track from it.
+            mSeekPosition = mPlaybackPosition;
+            mLock.notifyAll();
+        }
     }
 
     public void pause() {
-        if (isPlaying()) {
-            mAudioTrack.pause();
+        synchronized (mLock) {
+            if (mPlaying) {
+                mPlaybackPosition = getCurrentFrame();
+                mSeekPosition = -1;
+                mPlaying = false;
+                mPaused = true;
+                mLock.notifyAll();
+            }
         }
     }
 
     public void stop() {
-        if (isPlaying() || isPaused()) {
-            mKeepPlaying = false;
-            mAudioTrack.pause();
-            mAudioTrack.stop();
-            if (mPlayThread != null) {
-                try {
-                    mPlayThread.join();
-                } catch (InterruptedException e) {
-                }
-                mPlayThread = null;
-            }
-            mAudioTrack.flush();
+        pause();
+        synchronized (mLock) {
+            mPaused = false;
         }
     }
 
     public void release() {
-        stop();
+        synchronized (mLock) {
+            mPlaying = false;
+            mPaused = false;
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        try {
+            mPlayThread.join();
+        } catch (InterruptedException e) {
+        }
         mAudioTrack.release();
     }
 
+    // Scrubbing plays short grains around the last position given to scrubTo() for as long as
+    // it keeps moving, and silence once it stops. It is ignored while playing.
+    public void startScrub() {
+        synchronized (mLock) {
+            if (mPlaying || mReleased) {
+                return;
+            }
+            mScrubbing = true;
+            mScrubPosition = mPlaybackPosition;
+            mScrubMoveTime = 0;
+            mLock.notifyAll();
+        }
+    }
+
+    public void scrubTo(int msec) {
+        int position = (int) (msec * (mSampleRate / 1000.0));
+        synchronized (mLock) {
+            if (!mScrubbing) {
+                return;
+            }
+            if (position != mScrubPosition) {
+                mScrubPosition = Math.max(0, Math.min(position, mNumSamples));
+                mScrubMoveTime = SystemClock.uptimeMillis();
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    public void stopScrub() {
+        synchronized (mLock) {
+            if (mScrubbing) {
+                mScrubbing = false;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    public boolean isScrubbing() {
+        synchronized (mLock) {
+            return mScrubbing;
+        }
+    }
+
+    // Takes effect within one chunk while playing; the audio thread is never restarted.
     public void seekTo(int msec) {
-        boolean wasPlaying = isPlaying();
-        stop();
-        mPlaybackStart = (int) (msec * (mSampleRate / 1000.0));
-        if (mPlaybackStart > mNumSamples) {
-            mPlaybackStart = mNumSamples;
+        int position = (int) (msec * (mSampleRate / 1000.0));
+        if (position < 0) {
+            position = 0;
         }
-        mAudioTrack.setNotificationMarkerPosition(mNumSamples - 1 - mPlaybackStart);
-        if (wasPlaying) {
-            start();
+        if (position > mNumSamples) {
+            position = mNumSamples;
+        }
+        synchronized (mLock) {
+            if (mPlaying) {
+                mSeekPosition = position;
+                mLock.notifyAll();
+            } else {
+                mPlaybackPosition = position;
+            }
         }
     }
 
     public int getCurrentPosition() {
-        return (int) ((mPlaybackStart + mAudioTrack.getPlaybackHeadPosition()) *
-                (1000.0 / mSampleRate));
+        synchronized (mLock) {
+            return (int) (getCurrentFrame() * (1000.0 / mSampleRate));
+        }
+    }
+
+    // Must be called with mLock held.
+    private int getCurrentFrame() {
+        if (!mPlaying) {
+            return mPlaybackPosition;
+        }
+        if (mSeekPosition >= 0) {
+            return mSeekPosition;
+        }
+        int framesWritten = mFramesWritten;
+        int headPosition = mAudioTrack.getPlaybackHeadPosition();
+        long played = headPosition;
+        // The timestamp pins a frame to the time it left the speaker, which the head
+        // position only approximates in steps of a mixer period.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT &&
+                mAudioTrack.getTimestamp(mTimestamp)) {
+            long elapsedNanos = System.nanoTime() - mTimestamp.nanoTime;
+            long estimate = mTimestamp.framePosition + elapsedNanos * mSampleRate / 1000000000L;
+            if (estimate >= 0 && estimate <= framesWritten) {
+                played = estimate;
+            }
+        }
+        if (played > framesWritten) {
+            played = framesWritten;
+        }
+        return (int) Math.min(mTrackStart + played, mNumSamples);
+    }
+
+    private void runAudioLoop() {
+        int position = 0;
+        int trackState = TRACK_IDLE;
+        long chunkMillis = Math.max(1, mChunkFrames * 1000L / mSampleRate);
+        while (true) {
+            boolean scrubActive = false;
+            int scrubPosition = 0;
+            synchronized (mLock) {
+                int wanted = mPlaying ? TRACK_PLAYING : (mScrubbing ? TRACK_SCRUBBING : TRACK_IDLE);
+                if (trackState != TRACK_IDLE && (trackState != wanted ||
+                        (trackState == TRACK_PLAYING && mSeekPosition >= 0))) {
+                    mAudioTrack.pause();
+                    mAudioTrack.flush();
+                    trackState = TRACK_IDLE;
+                }
+                if (mSeekPosition >= 0) {
+                    mPlaybackPosition = mSeekPosition;
+                    mSeekPosition = -1;
+                }
+                while (!mPlaying && !mScrubbing && !mReleased) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                if (mReleased) {
+                    break;
+                }
+                if (trackState == TRACK_IDLE) {
+                    if (mPlaying) {
+                        position = mPlaybackPosition;
+                        trackState = TRACK_PLAYING;
+                    } else {
+                        Arrays.fill(mGrainTail, 0);
+                        trackState = TRACK_SCRUBBING;
+                    }
+                    mTrackStart = position;
+                    mFramesWritten = 0;
+                    mAudioTrack.play();
+                }
+                if (trackState == TRACK_SCRUBBING) {
+                    scrubActive = SystemClock.uptimeMillis() - mScrubMoveTime < SCRUB_IDLE_MS;
+                    scrubPosition = mScrubPosition;
+                }
+            }
+
+            int queued = mFramesWritten - mAudioTrack.getPlaybackHeadPosition();
+            if (trackState == TRACK_PLAYING && position >= mNumSamples) {
+                if (mTrackStart + mAudioTrack.getPlaybackHeadPosition() >= mNumSamples) {
+                    synchronized (mLock) {
+                        if (mPlaying && mSeekPosition < 0) {
+                            mPlaybackPosition = mNumSamples;
+                            mPlaying = false;
+                            mHandler.post(mCompletionRunnable);
+                        }
+                    }
+                } else {
+                    waitForRequest(chunkMillis / 2);
+                }
+                continue;
+            }
+            if (queued + mChunkFrames > mBufferFrames) {
+                waitForRequest(chunkMillis / 2);
+                continue;
+            }
+
+            if (trackState == TRACK_SCRUBBING) {
+                fillScrubChunk(scrubActive, scrubPosition);
+            } else {
+                int numFrames = Math.min(mChunkFrames, mNumSamples - position);
+                readFrames(position, mBuffer, numFrames);
+                position += numFrames;
+            }
+            mAudioTrack.write(mBuffer, 0, mBuffer.length);
+            mFramesWritten += mChunkFrames;
+        }
+        if (trackState != TRACK_IDLE) {
+            mAudioTrack.pause();
+            mAudioTrack.flush();
+        }
+    }
+
+    // Reads numFrames frames into dst and pads the rest of it with silence.
+    private void readFrames(int position, short[] dst, int numFrames) {
+        if (numFrames > 0) {
+            mSamples.position(position * mChannels);
+            mSamples.get(dst, 0, numFrames * mChannels);
+        } else {
+            numFrames = 0;
+        }
+        for (int i = numFrames * mChannels; i < dst.length; i++) {
+            dst[i] = 0;
+        }
+    }
+
+    // Overlap-adds the second half of the previous grain with the first half of a new one
+    // centered on the scrub position, or with silence once the position has stopped moving.
+    private void fillScrubChunk(boolean active, int scrubPosition) {
+        int half = mChunkFrames * mChannels;
+        if (active) {
+            int start = Math.max(0, scrubPosition - mChunkFrames);
+            readFrames(start, mGrain, Math.min(2 * mChunkFrames, mNumSamples - start));
+        }
+        for (int i = 0; i < half; i++) {
+            float value = mGrainTail[i];
+            if (active) {
+                value += mGrain[i] * mWindow[i / mChannels];
+                mGrainTail[i] = mGrain[half + i] * mWindow[mChunkFrames + i / mChannels];
+            } else {
+                mGrainTail[i] = 0;
+            }
+            mBuffer[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+        }
     }
+
+    // Sleeps for up to the given time, waking early on any request.
+    private void waitForRequest(long millis) {
+        synchronized (mLock) {
+            if (((mPlaying && mSeekPosition < 0) || mScrubbing) && !mReleased) {
+                try {
+                    mLock.wait(Math.max(1, millis));
+                } catch (InterruptedException e) {
+                }
+            }
+        }
+    }
+
+    private Runnable mCompletionRunnable = new Runnable() {
+        public void run() {
+            if (mListener != null) {
+                mListener.onCompletion();
+            }
+        }
+    };
 }
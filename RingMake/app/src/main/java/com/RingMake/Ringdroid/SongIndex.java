@@ -0,0 +1,170 @@
+package com.RingMake.Ringdroid;
+
+import com.RingMake.Models.SongsModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// In-memory search over the titles, artists and albums of a song list. A song matches when
+// every word of the query does: words of one or two characters as the start of one of its
+// words, longer ones anywhere inside one of its words. Short words are looked up in a sorted
+// word list. Longer ones take the songs holding their rarest trigram as candidates, which are
+// then checked against the song's text. Results keep the order of the list the index was
+// built from. The index never changes once built, so any thread may search it.
+public class SongIndex {
+    private static final int GRAM = 3;
+
+    private List<SongsModel> mSongs;
+    private String[] mTexts;  // Normalized title, artist and album of each song.
+    private String[] mWords;  // Sorted.
+    private int[][] mWordSongs;
+    private HashMap<String, int[]> mGramSongs;
+
+    // Ascending song indices, each added once.
+    private static class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(ids, size);
+        }
+    }
+
+    public SongIndex(List<SongsModel> songs) {
+        mSongs = new ArrayList<SongsModel>(songs);
+        mTexts = new String[mSongs.size()];
+        TreeMap<String, Postings> words = new TreeMap<String, Postings>();
+        HashMap<String, Postings> grams = new HashMap<String, Postings>();
+        for (int i = 0; i < mSongs.size(); i++) {
+            SongsModel song = mSongs.get(i);
+            mTexts[i] = normalize(song.mSongsName) + ' ' + normalize(song.mArtistName) + ' '
+                    + normalize(song.mAlbum);
+            for (String word : mTexts[i].split(" ")) {
+                if (word.length() == 0) {
+                    continue;
+                }
+                getPostings(words, word).add(i);
+                for (int j = 0; j + GRAM <= word.length(); j++) {
+                    getPostings(grams, word.substring(j, j + GRAM)).add(i);
+                }
+            }
+        }
+
+        mWords = new String[words.size()];
+        mWordSongs = new int[words.size()][];
+        int w = 0;
+        for (Map.Entry<String, Postings> entry : words.entrySet()) {
+            mWords[w] = entry.getKey();
+            mWordSongs[w] = entry.getValue().toArray();
+            w++;
+        }
+        mGramSongs = new HashMap<String, int[]>(grams.size() * 2);
+        for (Map.Entry<String, Postings> entry : grams.entrySet()) {
+            mGramSongs.put(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+
+    // The songs matching every word of query; all of them when query has no words.
+    public ArrayList<SongsModel> search(String query) {
+        BitSet matches = null;
+        for (String term : normalize(query).split(" ")) {
+            if (term.length() == 0) {
+                continue;
+            }
+            BitSet songs = (term.length() < GRAM) ? findPrefix(term) : findSubstring(term);
+            if (matches == null) {
+                matches = songs;
+            } else {
+                matches.and(songs);
+            }
+        }
+        if (matches == null) {
+            return new ArrayList<SongsModel>(mSongs);
+        }
+        ArrayList<SongsModel> result = new ArrayList<SongsModel>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            result.add(mSongs.get(i));
+        }
+        return result;
+    }
+
+    private BitSet findPrefix(String prefix) {
+        BitSet songs = new BitSet(mSongs.size());
+        int w = Arrays.binarySearch(mWords, prefix);
+        if (w < 0) {
+            w = -w - 1;
+        }
+        for (; w < mWords.length && mWords[w].startsWith(prefix); w++) {
+            for (int id : mWordSongs[w]) {
+                songs.set(id);
+            }
+        }
+        return songs;
+    }
+
+    private BitSet findSubstring(String term) {
+        int[] candidates = null;
+        for (int j = 0; j + GRAM <= term.length(); j++) {
+            int[] ids = mGramSongs.get(term.substring(j, j + GRAM));
+            if (ids == null) {
+                return new BitSet();
+            }
+            if (candidates == null || ids.length < candidates.length) {
+                candidates = ids;
+            }
+        }
+        BitSet songs = new BitSet(mSongs.size());
+        for (int id : candidates) {
+            if (mTexts[id].contains(term)) {
+                songs.set(id);
+            }
+        }
+        return songs;
+    }
+
+    private static Postings getPostings(Map<String, Postings> map, String key) {
+        Postings postings = map.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            map.put(key, postings);
+        }
+        return postings;
+    }
+
+    // Lower case letters and digits, with a single space between words.
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        boolean separator = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!Character.isLetterOrDigit(c)) {
+                separator = true;
+                continue;
+            }
+            if (separator && builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(Character.toLowerCase(c));
+            separator = false;
+        }
+        return builder.toString();
+    }
+}
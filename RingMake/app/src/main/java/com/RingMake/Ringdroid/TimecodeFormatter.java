@@ -0,0 +1,67 @@
+package com.RingMake.Ringdroid;
+
+import java.util.Arrays;
+
+// Formats whole seconds as "m:ss" into a reused char buffer and remembers the rendered width
+// of every label, so drawing timecodes allocates nothing once each label has been seen.
+class TimecodeFormatter {
+    interface TextMeasurer {
+        float measureText(char[] text, int index, int count);
+    }
+
+    private final TextMeasurer mMeasurer;
+    private final char[] mChars;
+    private float[] mWidths;
+
+    TimecodeFormatter(TextMeasurer measurer) {
+        mMeasurer = measurer;
+        mChars = new char[16];
+        mWidths = new float[0];
+    }
+
+    char[] getChars() {
+        return mChars;
+    }
+
+    // Writes the label for the given number of seconds to getChars() and returns its length.
+    int format(int seconds) {
+        if (seconds < 0)
+            seconds = 0;
+        int minutes = seconds / 60;
+        seconds = seconds % 60;
+
+        int len = 1;
+        for (int m = minutes / 10; m > 0; m /= 10) {
+            len++;
+        }
+        for (int i = len - 1; i >= 0; i--) {
+            mChars[i] = (char) ('0' + minutes % 10);
+            minutes /= 10;
+        }
+        mChars[len++] = ':';
+        mChars[len++] = (char) ('0' + seconds / 10);
+        mChars[len++] = (char) ('0' + seconds % 10);
+        return len;
+    }
+
+    float getWidth(int seconds) {
+        if (seconds < 0)
+            seconds = 0;
+        if (seconds >= mWidths.length) {
+            float[] widths = new float[Math.max(seconds + 1, 2 * mWidths.length)];
+            System.arraycopy(mWidths, 0, widths, 0, mWidths.length);
+            Arrays.fill(widths, mWidths.length, widths.length, -1);
+            mWidths = widths;
+        }
+        if (mWidths[seconds] < 0) {
+            int len = format(seconds);
+            mWidths[seconds] = mMeasurer.measureText(mChars, 0, len);
+        }
+        return mWidths[seconds];
+    }
+
+    // Must be called whenever the text size or typeface of the measured paint changes.
+    void clearWidths() {
+        Arrays.fill(mWidths, -1);
+    }
+}
@@ -2,9 +2,12 @@ package com.RingMake.Ringdroid;
 
 import android.content.Context;
 import android.content.res.Resources;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.DashPathEffect;
 import android.graphics.Paint;
+import android.os.Build;
 import android.support.v4.content.ContextCompat;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -15,6 +18,11 @@ import android.view.View;
 
 import com.mp3cutter.ringtonemaker.R;
 import com.RingMake.Ringdroid.soundfile.SoundFile;
+import com.RingMake.audiocore.PeakPyramid;
+import com.RingMake.audiocore.ProgressivePeaks;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class WaveformView extends View {
 
@@ -29,9 +37,7 @@ public class WaveformView extends View {
 
         public void waveformDraw();
 
-        public void waveformZoomIn();
-
-        public void waveformZoomOut();
+        public void waveformZoomChanged();
     }
 
     ;
@@ -43,14 +49,26 @@ public class WaveformView extends View {
     private Paint mBorderLinePaint;
     private Paint mPlaybackLinePaint;
     private Paint mTimecodePaint;
+    private TimecodeFormatter mTimecodeFormatter;
+    private Paint mTilePaint;
+    private Canvas mTileCanvas;
+    private Bitmap[] mTiles;
+    private int[] mTileIndices;
+    private float[] mTilePoints;
+    private float[] mGridPoints;
+
+    // Zoom is expressed in pixels per frame and can take any value in this range.
+    private static final double MIN_ZOOM_FACTOR = 1.0 / 64;
+    private static final double MAX_ZOOM_FACTOR = 4.0;
+    private static final float MIN_SCALE_SPAN = 20;
+    private static final int TILE_WIDTH = 256;
+
+    private static ForkJoinPool sAnalysisPool;
 
     private SoundFile mSoundFile;
-    private int[] mLenByZoomLevel;
-    private double[][] mValuesByZoomLevel;
-    private double[] mZoomFactorByZoomLevel;
-    private int[] mHeightsAtThisZoomLevel;
-    private int mZoomLevel;
-    private int mNumZoomLevels;
+    private PeakPyramid mPeaks;
+    private ProgressivePeaks mProgressivePeaks;  // Only while the sound file is decoding.
+    private double mZoomFactor;
     private int mSampleRate;
     private int mSamplesPerFrame;
     private int mOffset;
@@ -59,6 +77,10 @@ public class WaveformView extends View {
     private int mPlaybackPos;
     private float mDensity;
     private float mInitialScaleSpan;
+    private double mScaleStartZoomFactor;
+    private int mScaleStartSelectionStart;
+    private int mScaleStartSelectionEnd;
+    private int mScaleStartOffset;
     private WaveformListener mListener;
     private GestureDetector mGestureDetector;
     private ScaleGestureDetector mScaleGestureDetector;
@@ -104,6 +126,18 @@ public class WaveformView extends View {
         mTimecodePaint.setColor(ContextCompat.getColor(getContext(), R.color.black));
         mTimecodePaint.setShadowLayer(2, 1, 1, ContextCompat.getColor(getContext(), R.color.timecode_shadow));
 
+        mTimecodeFormatter = new TimecodeFormatter(new TimecodeFormatter.TextMeasurer() {
+            public float measureText(char[] text, int index, int count) {
+                return mTimecodePaint.measureText(text, index, count);
+            }
+        });
+
+        mTilePaint = new Paint();
+        mTilePaint.setAntiAlias(false);
+        mTilePaint.setColor(Color.BLACK);
+        mTileCanvas = new Canvas();
+        mTilePoints = new float[4 * TILE_WIDTH];
+
         mGestureDetector = new GestureDetector(
                 context,
                 new GestureDetector.SimpleOnGestureListener() {
@@ -119,21 +153,22 @@ public class WaveformView extends View {
                 new ScaleGestureDetector.SimpleOnScaleGestureListener() {
                     public boolean onScaleBegin(ScaleGestureDetector d) {
                         Log.v("Ringdroid", "ScaleBegin " + d.getCurrentSpanX());
-                        mInitialScaleSpan = Math.abs(d.getCurrentSpanX());
+                        mInitialScaleSpan = Math.max(Math.abs(d.getCurrentSpanX()), MIN_SCALE_SPAN);
+                        mScaleStartZoomFactor = mZoomFactor;
+                        mScaleStartSelectionStart = mSelectionStart;
+                        mScaleStartSelectionEnd = mSelectionEnd;
+                        mScaleStartOffset = mOffset;
                         return true;
                     }
 
+                    // Always rescales from the state at the start of the gesture, so rounding
+                    // to whole pixels does not accumulate while the fingers move.
                     public boolean onScale(ScaleGestureDetector d) {
-                        float scale = Math.abs(d.getCurrentSpanX());
-                        Log.v("Ringdroid", "Scale " + (scale - mInitialScaleSpan));
-                        if (scale - mInitialScaleSpan > 40) {
-                            mListener.waveformZoomIn();
-                            mInitialScaleSpan = scale;
-                        }
-                        if (scale - mInitialScaleSpan < -40) {
-                            mListener.waveformZoomOut();
-                            mInitialScaleSpan = scale;
-                        }
+                        float scale = Math.max(Math.abs(d.getCurrentSpanX()), MIN_SCALE_SPAN);
+                        zoomFrom(mScaleStartZoomFactor * scale / mInitialScaleSpan,
+                                mScaleStartZoomFactor, mScaleStartSelectionStart,
+                                mScaleStartSelectionEnd, mScaleStartOffset);
+                        mListener.waveformZoomChanged();
                         return true;
                     }
 
@@ -144,9 +179,8 @@ public class WaveformView extends View {
         );
 
         mSoundFile = null;
-        mLenByZoomLevel = null;
-        mValuesByZoomLevel = null;
-        mHeightsAtThisZoomLevel = null;
+        mPeaks = null;
+        mZoomFactor = 1.0;
         mOffset = 0;
         mPlaybackPos = -1;
         mSelectionStart = 0;
@@ -182,69 +216,93 @@ public class WaveformView extends View {
 
     public void setSoundFile(SoundFile soundFile) {
         mSoundFile = soundFile;
+        mProgressivePeaks = null;
         mSampleRate = mSoundFile.getSampleRate();
         mSamplesPerFrame = mSoundFile.getSamplesPerFrame();
-        computeDoublesForAllZoomLevels();
-        mHeightsAtThisZoomLevel = null;
+        computePeaks();
+        chooseInitialZoomFactor(
+                Math.max(mSoundFile.getNumFrames(), mSoundFile.getExpectedNumFrames()));
+    }
+
+    // Picks up the frames decoded since the last call while the sound file is still loading.
+    // Only those frames are analyzed, and only the tiles showing them are drawn again. The
+    // zoom level, offset and selection are kept as they are.
+    public void updateFrameGains() {
+        if (mSoundFile == null) {
+            return;
+        }
+        if (mProgressivePeaks == null) {
+            mProgressivePeaks = new ProgressivePeaks();
+        }
+        // The frame count is published after the gains, so it has to be read first.
+        int numFrames = mSoundFile.getNumFrames();
+        int from = mProgressivePeaks.update(mSoundFile.getFrameGains(), numFrames);
+        mPeaks = mProgressivePeaks.getPeaks();
+        invalidateTilesFrom(from);
+        invalidate();
+    }
+
+    // Replaces the waveform shown while decoding with the one of the whole file.
+    public void finishFrameGains() {
+        if (mSoundFile == null) {
+            return;
+        }
+        mProgressivePeaks = null;
+        computePeaks();
+        invalidate();
     }
 
     public boolean isInitialized() {
         return mInitialized;
     }
 
-    public int getZoomLevel() {
-        return mZoomLevel;
+    public double getZoomFactor() {
+        return mZoomFactor;
     }
 
-    public void setZoomLevel(int zoomLevel) {
-        while (mZoomLevel > zoomLevel) {
-            zoomIn();
-        }
-        while (mZoomLevel < zoomLevel) {
-            zoomOut();
-        }
+    public void setZoomFactor(double zoomFactor) {
+        zoomFrom(zoomFactor, mZoomFactor, mSelectionStart, mSelectionEnd, mOffset);
     }
 
     public boolean canZoomIn() {
-        return (mZoomLevel > 0);
+        return (mZoomFactor < MAX_ZOOM_FACTOR);
     }
 
     public void zoomIn() {
-        if (canZoomIn()) {
-            mZoomLevel--;
-            mSelectionStart *= 2;
-            mSelectionEnd *= 2;
-            mHeightsAtThisZoomLevel = null;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter *= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            invalidate();
-        }
+        setZoomFactor(mZoomFactor * 2);
     }
 
     public boolean canZoomOut() {
-        return (mZoomLevel < mNumZoomLevels - 1);
+        return (mZoomFactor > MIN_ZOOM_FACTOR);
     }
 
     public void zoomOut() {
-        if (canZoomOut()) {
-            mZoomLevel++;
-            mSelectionStart /= 2;
-            mSelectionEnd /= 2;
-            int offsetCenter = mOffset + getMeasuredWidth() / 2;
-            offsetCenter /= 2;
-            mOffset = offsetCenter - getMeasuredWidth() / 2;
-            if (mOffset < 0)
-                mOffset = 0;
-            mHeightsAtThisZoomLevel = null;
-            invalidate();
-        }
+        setZoomFactor(mZoomFactor / 2);
+    }
+
+    // Rescales pixel positions taken at fromZoomFactor to the new zoom factor, keeping the
+    // center of the view in place.
+    private void zoomFrom(double zoomFactor, double fromZoomFactor,
+                          int selectionStart, int selectionEnd, int offset) {
+        if (zoomFactor < MIN_ZOOM_FACTOR)
+            zoomFactor = MIN_ZOOM_FACTOR;
+        if (zoomFactor > MAX_ZOOM_FACTOR)
+            zoomFactor = MAX_ZOOM_FACTOR;
+        double ratio = zoomFactor / fromZoomFactor;
+        mZoomFactor = zoomFactor;
+        invalidateTiles();
+        mSelectionStart = (int) (selectionStart * ratio + 0.5);
+        mSelectionEnd = (int) (selectionEnd * ratio + 0.5);
+        int offsetCenter = offset + getMeasuredWidth() / 2;
+        offsetCenter = (int) (offsetCenter * ratio + 0.5);
+        mOffset = offsetCenter - getMeasuredWidth() / 2;
+        if (mOffset < 0)
+            mOffset = 0;
+        invalidate();
     }
 
     public int maxPos() {
-        return mLenByZoomLevel[mZoomLevel];
+        return (int) (mPeaks.getNumFrames() * mZoomFactor);
     }
 
     public int secondsToFrames(double seconds) {
@@ -252,23 +310,23 @@ public class WaveformView extends View {
     }
 
     public int secondsToPixels(double seconds) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (int) (z * seconds * mSampleRate / mSamplesPerFrame + 0.5);
     }
 
     public double pixelsToSeconds(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (pixels * (double) mSamplesPerFrame / (mSampleRate * z));
     }
 
     public int millisecsToPixels(int msecs) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (int) ((msecs * 1.0 * mSampleRate * z) /
                 (1000.0 * mSamplesPerFrame) + 0.5);
     }
 
     public int pixelsToMillisecs(int pixels) {
-        double z = mZoomFactorByZoomLevel[mZoomLevel];
+        double z = mZoomFactor;
         return (int) (pixels * (1000.0 * mSamplesPerFrame) /
                 (mSampleRate * z) + 0.5);
     }
@@ -300,41 +358,53 @@ public class WaveformView extends View {
     }
 
     public void recomputeHeights(float density) {
-        mHeightsAtThisZoomLevel = null;
         mDensity = density;
         mTimecodePaint.setTextSize((int) (12 * density));
+        mTimecodeFormatter.clearWidths();
 
         invalidate();
     }
 
-    protected void drawWaveformLine(Canvas canvas,
-                                    int x, int y0, int y1,
-                                    Paint paint) {
-        canvas.drawLine(x, y0, x, y1, paint);
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        releaseTiles();
+        mTiles = new Bitmap[w / TILE_WIDTH + 3];
+        mTileIndices = new int[mTiles.length];
+        Arrays.fill(mTileIndices, -1);
+        mGridPoints = new float[4 * (w + 1)];
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        releaseTiles();
+    }
+
+    // The waveform itself only changes with the zoom factor, the view size and the frame
+    // gains. It is rendered once into alpha-only tiles that are blitted with the selected and
+    // unselected paints, so a scroll or a selection change is just a few bitmap copies.
     @Override
     protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
-        if (mSoundFile == null)
+        if (mSoundFile == null || mTiles == null)
             return;
 
-        if (mHeightsAtThisZoomLevel == null)
-            computeIntsForThisZoomLevel();
-
         int measuredWidth = getMeasuredWidth();
         int measuredHeight = getMeasuredHeight();
         int start = mOffset;
-        int width = mHeightsAtThisZoomLevel.length - start;
-        int ctr = measuredHeight / 2;
+        int width = maxPos() - start;
 
         if (width > measuredWidth)
             width = measuredWidth;
+        if (width < 0)
+            width = 0;
 
         double onePixelInSecs = pixelsToSeconds(1);
         boolean onlyEveryFiveSecs = (onePixelInSecs > 1.0 / 50.0);
         double fractionalSecs = mOffset * onePixelInSecs;
         int integerSecs = (int) fractionalSecs;
+        int numGridPoints = 0;
         int i = 0;
         while (i < width) {
             i++;
@@ -343,35 +413,37 @@ public class WaveformView extends View {
             if (integerSecsNew != integerSecs) {
                 integerSecs = integerSecsNew;
                 if (!onlyEveryFiveSecs || 0 == (integerSecs % 5)) {
-                    canvas.drawLine(i, 0, i, measuredHeight, mGridPaint);
+                    mGridPoints[numGridPoints++] = i;
+                    mGridPoints[numGridPoints++] = 0;
+                    mGridPoints[numGridPoints++] = i;
+                    mGridPoints[numGridPoints++] = measuredHeight;
                 }
             }
         }
-
-        for (i = 0; i < width; i++) {
-            Paint paint;
-            if (i + start >= mSelectionStart &&
-                    i + start < mSelectionEnd) {
-                paint = mSelectedLinePaint;
-            } else {
-                drawWaveformLine(canvas, i, 0, measuredHeight,
-                        mUnselectedBkgndLinePaint);
-                paint = mUnselectedLinePaint;
-            }
-            drawWaveformLine(
-                    canvas, i,
-                    ctr - mHeightsAtThisZoomLevel[start + i],
-                    ctr + 1 + mHeightsAtThisZoomLevel[start + i],
-                    paint);
-
-            if (i + start == mPlaybackPos) {
-                canvas.drawLine(i, 0, i, measuredHeight, mPlaybackLinePaint);
+        canvas.drawLines(mGridPoints, 0, numGridPoints, mGridPaint);
+
+        int selectionStartX = Math.min(Math.max(mSelectionStart - start, 0), width);
+        int selectionEndX = Math.min(Math.max(mSelectionEnd - start, selectionStartX), width);
+        canvas.drawRect(0, 0, selectionStartX, measuredHeight, mUnselectedBkgndLinePaint);
+        canvas.drawRect(selectionEndX, 0, measuredWidth, measuredHeight,
+                mUnselectedBkgndLinePaint);
+
+        if (width > 0) {
+            int firstTile = start / TILE_WIDTH;
+            int lastTile = (start + width - 1) / TILE_WIDTH;
+            for (int tile = firstTile; tile <= lastTile; tile++) {
+                Bitmap bitmap = getTile(tile, firstTile, lastTile);
+                int left = tile * TILE_WIDTH - start;
+                drawTile(canvas, bitmap, left, 0, selectionStartX, mUnselectedLinePaint);
+                drawTile(canvas, bitmap, left, selectionStartX, selectionEndX,
+                        mSelectedLinePaint);
+                drawTile(canvas, bitmap, left, selectionEndX, width, mUnselectedLinePaint);
             }
         }
 
-        for (i = width; i < measuredWidth; i++) {
-            drawWaveformLine(canvas, i, 0, measuredHeight,
-                    mUnselectedBkgndLinePaint);
+        if (mPlaybackPos >= start && mPlaybackPos < start + width) {
+            canvas.drawLine(mPlaybackPos - start, 0, mPlaybackPos - start, measuredHeight,
+                    mPlaybackLinePaint);
         }
 
         canvas.drawLine(
@@ -403,15 +475,9 @@ public class WaveformView extends View {
             if (integerTimecodeNew != integerTimecode) {
                 integerTimecode = integerTimecodeNew;
 
-                String timecodeMinutes = "" + (integerSecs / 60);
-                String timecodeSeconds = "" + (integerSecs % 60);
-                if ((integerSecs % 60) < 10) {
-                    timecodeSeconds = "0" + timecodeSeconds;
-                }
-                String timecodeStr = timecodeMinutes + ":" + timecodeSeconds;
-                float offset = (float) (
-                        0.5 * mTimecodePaint.measureText(timecodeStr));
-                canvas.drawText(timecodeStr,
+                float offset = 0.5f * mTimecodeFormatter.getWidth(integerSecs);
+                int timecodeLen = mTimecodeFormatter.format(integerSecs);
+                canvas.drawText(mTimecodeFormatter.getChars(), 0, timecodeLen,
                         i - offset,
                         (int) (12 * mDensity),
                         mTimecodePaint);
@@ -423,134 +489,150 @@ public class WaveformView extends View {
         }
     }
 
-    private void computeDoublesForAllZoomLevels() {
+    private void computePeaks() {
         int numFrames = mSoundFile.getNumFrames();
         int[] frameGains = mSoundFile.getFrameGains();
-        double[] smoothedGains = new double[numFrames];
-        if (numFrames == 1) {
-            smoothedGains[0] = frameGains[0];
-        } else if (numFrames == 2) {
-            smoothedGains[0] = frameGains[0];
-            smoothedGains[1] = frameGains[1];
-        } else if (numFrames > 2) {
-            smoothedGains[0] = (double) (
-                    (frameGains[0] / 2.0) +
-                            (frameGains[1] / 2.0));
-            for (int i = 1; i < numFrames - 1; i++) {
-                smoothedGains[i] = (double) (
-                        (frameGains[i - 1] / 3.0) +
-                                (frameGains[i] / 3.0) +
-                                (frameGains[i + 1] / 3.0));
-            }
-            smoothedGains[numFrames - 1] = (double) (
-                    (frameGains[numFrames - 2] / 2.0) +
-                            (frameGains[numFrames - 1] / 2.0));
-        }
+        mPeaks = PeakPyramid.fromFrameGains(frameGains, numFrames, getAnalysisPool());
+        invalidateTiles();
 
-        double maxGain = 1.0;
-        for (int i = 0; i < numFrames; i++) {
-            if (smoothedGains[i] > maxGain) {
-                maxGain = smoothedGains[i];
-            }
+        mInitialized = true;
+    }
+
+    // Shared by every view. ForkJoinPool only exists from Lollipop on, so older devices and
+    // single core ones normalize on the calling thread.
+    private static ForkJoinPool getAnalysisPool() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                || Runtime.getRuntime().availableProcessors() < 2) {
+            return null;
         }
-        double scaleFactor = 1.0;
-        if (maxGain > 255.0) {
-            scaleFactor = 255 / maxGain;
+        if (sAnalysisPool == null) {
+            sAnalysisPool = new ForkJoinPool();
         }
+        return sAnalysisPool;
+    }
 
-        maxGain = 0;
-        int gainHist[] = new int[256];
-        for (int i = 0; i < numFrames; i++) {
-            int smoothedGain = (int) (smoothedGains[i] * scaleFactor);
-            if (smoothedGain < 0)
-                smoothedGain = 0;
-            if (smoothedGain > 255)
-                smoothedGain = 255;
-
-            if (smoothedGain > maxGain)
-                maxGain = smoothedGain;
+    private void drawTile(Canvas canvas, Bitmap bitmap, int left,
+                          int clipLeft, int clipRight, Paint paint) {
+        if (clipRight <= clipLeft || left >= clipRight || left + TILE_WIDTH <= clipLeft)
+            return;
+        canvas.save();
+        canvas.clipRect(clipLeft, 0, clipRight, bitmap.getHeight());
+        canvas.drawBitmap(bitmap, left, 0, paint);
+        canvas.restore();
+    }
 
-            gainHist[smoothedGain]++;
+    // Returns the rendered tile, reusing the cached slot furthest from the visible range
+    // [firstTile, lastTile] when it is not cached yet.
+    private Bitmap getTile(int tile, int firstTile, int lastTile) {
+        int slot = 0;
+        int maxDistance = Integer.MIN_VALUE;
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTileIndices[i] == tile) {
+                return mTiles[i];
+            }
+            int distance;
+            if (mTileIndices[i] < 0) {
+                distance = Integer.MAX_VALUE;
+            } else if (mTileIndices[i] < firstTile) {
+                distance = firstTile - mTileIndices[i];
+            } else {
+                distance = mTileIndices[i] - lastTile;
+            }
+            if (distance > maxDistance) {
+                maxDistance = distance;
+                slot = i;
+            }
         }
-
-        double minGain = 0;
-        int sum = 0;
-        while (minGain < 255 && sum < numFrames / 20) {
-            sum += gainHist[(int) minGain];
-            minGain++;
+        if (mTiles[slot] == null) {
+            mTiles[slot] = Bitmap.createBitmap(
+                    TILE_WIDTH, getMeasuredHeight(), Bitmap.Config.ALPHA_8);
         }
+        renderTile(mTiles[slot], tile);
+        mTileIndices[slot] = tile;
+        return mTiles[slot];
+    }
 
-        sum = 0;
-        while (maxGain > 2 && sum < numFrames / 100) {
-            sum += gainHist[(int) maxGain];
-            maxGain--;
+    private void renderTile(Bitmap bitmap, int tile) {
+        int ctr = bitmap.getHeight() / 2;
+        int halfHeight = ctr - 1;
+        int x0 = tile * TILE_WIDTH;
+        int numColumns = Math.min(TILE_WIDTH, maxPos() - x0);
+        for (int i = 0; i < numColumns; i++) {
+            int height = getPeakAt(x0 + i) * halfHeight / 255;
+            mTilePoints[4 * i] = i;
+            mTilePoints[4 * i + 1] = ctr - height;
+            mTilePoints[4 * i + 2] = i;
+            mTilePoints[4 * i + 3] = ctr + 1 + height;
         }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        mTileCanvas.setBitmap(bitmap);
+        mTileCanvas.drawLines(mTilePoints, 0, 4 * Math.max(numColumns, 0), mTilePaint);
+        mTileCanvas.setBitmap(null);
+    }
 
-        double[] heights = new double[numFrames];
-        double range = maxGain - minGain;
-        for (int i = 0; i < numFrames; i++) {
-            double value = (smoothedGains[i] * scaleFactor - minGain) / range;
-            if (value < 0.0)
-                value = 0.0;
-            if (value > 1.0)
-                value = 1.0;
-            heights[i] = value * value;
+    private void invalidateTiles() {
+        if (mTileIndices != null) {
+            Arrays.fill(mTileIndices, -1);
         }
+    }
 
-        mNumZoomLevels = 5;
-        mLenByZoomLevel = new int[5];
-        mZoomFactorByZoomLevel = new double[5];
-        mValuesByZoomLevel = new double[5][];
-
-        mLenByZoomLevel[0] = numFrames * 2;
-        mZoomFactorByZoomLevel[0] = 2.0;
-        mValuesByZoomLevel[0] = new double[mLenByZoomLevel[0]];
-        if (numFrames > 0) {
-            mValuesByZoomLevel[0][0] = 0.5 * heights[0];
-            mValuesByZoomLevel[0][1] = heights[0];
-        }
-        for (int i = 1; i < numFrames; i++) {
-            mValuesByZoomLevel[0][2 * i] = 0.5 * (heights[i - 1] + heights[i]);
-            mValuesByZoomLevel[0][2 * i + 1] = heights[i];
+    // Drops the cached tiles that may show frame or any frame after it. A column also reads
+    // the frame next to it when zoomed in, and up to one column width past its frames when
+    // zoomed out.
+    private void invalidateTilesFrom(int frame) {
+        if (mTileIndices == null) {
+            return;
         }
-
-        mLenByZoomLevel[1] = numFrames;
-        mValuesByZoomLevel[1] = new double[mLenByZoomLevel[1]];
-        mZoomFactorByZoomLevel[1] = 1.0;
-        for (int i = 0; i < mLenByZoomLevel[1]; i++) {
-            mValuesByZoomLevel[1][i] = heights[i];
+        int firstTile = Math.max(0, (int) ((frame - 1) * mZoomFactor) - 1) / TILE_WIDTH;
+        for (int i = 0; i < mTileIndices.length; i++) {
+            if (mTileIndices[i] >= firstTile) {
+                mTileIndices[i] = -1;
+            }
         }
+    }
 
-        for (int j = 2; j < 5; j++) {
-            mLenByZoomLevel[j] = mLenByZoomLevel[j - 1] / 2;
-            mValuesByZoomLevel[j] = new double[mLenByZoomLevel[j]];
-            mZoomFactorByZoomLevel[j] = mZoomFactorByZoomLevel[j - 1] / 2.0;
-            for (int i = 0; i < mLenByZoomLevel[j]; i++) {
-                mValuesByZoomLevel[j][i] =
-                        0.5 * (mValuesByZoomLevel[j - 1][2 * i] +
-                                mValuesByZoomLevel[j - 1][2 * i + 1]);
+    private void releaseTiles() {
+        if (mTiles != null) {
+            for (int i = 0; i < mTiles.length; i++) {
+                if (mTiles[i] != null) {
+                    mTiles[i].recycle();
+                    mTiles[i] = null;
+                }
             }
+            Arrays.fill(mTileIndices, -1);
         }
+    }
 
+    private void chooseInitialZoomFactor(int numFrames) {
         if (numFrames > 5000) {
-            mZoomLevel = 3;
+            mZoomFactor = 0.25;
         } else if (numFrames > 1000) {
-            mZoomLevel = 2;
+            mZoomFactor = 0.5;
         } else if (numFrames > 300) {
-            mZoomLevel = 1;
+            mZoomFactor = 1.0;
         } else {
-            mZoomLevel = 0;
+            mZoomFactor = 2.0;
         }
-
-        mInitialized = true;
     }
 
-    private void computeIntsForThisZoomLevel() {
-        int halfHeight = (getMeasuredHeight() / 2) - 1;
-        mHeightsAtThisZoomLevel = new int[mLenByZoomLevel[mZoomLevel]];
-        for (int i = 0; i < mLenByZoomLevel[mZoomLevel]; i++) {
-            mHeightsAtThisZoomLevel[i] =
-                    (int) (mValuesByZoomLevel[mZoomLevel][i] * halfHeight);
+    // Height (0-255) of the waveform column at pixel x. Zoomed in past one frame per pixel the
+    // frame values are interpolated; zoomed out, the column shows the peak of all its frames.
+    private int getPeakAt(int x) {
+        int numFrames = mPeaks.getNumFrames();
+        if (mZoomFactor > 1.0) {
+            double pos = (x + 0.5) / mZoomFactor - 0.5;
+            int frame = (int) Math.floor(pos);
+            if (frame < 0)
+                return mPeaks.get(0);
+            if (frame >= numFrames - 1)
+                return mPeaks.get(numFrames - 1);
+            double frac = pos - frame;
+            return (int) ((1 - frac) * mPeaks.get(frame) + frac * mPeaks.get(frame + 1) + 0.5);
         }
+        int from = (int) (x / mZoomFactor);
+        int to = (int) ((x + 1) / mZoomFactor);
+        if (to <= from)
+            to = from + 1;
+        return mPeaks.getMax(from, to);
     }
 }
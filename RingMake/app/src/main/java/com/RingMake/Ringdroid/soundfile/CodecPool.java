@@ -0,0 +1,335 @@
+package com.RingMake.Ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+// Keeps a few codecs alive between uses, since allocating one is among the slowest steps of
+// opening or saving a file. A codec handed back is flushed, and the next request with the same
+// MIME type, sample rate, channel count and codec config (and bitrate, for encoders) gets it
+// without configuring it again. Other requests for the same MIME type reconfigure an idle
+// codec after reset() where the platform has it. Asynchronous codecs keep one forwarding
+// callback for life, delivered on the pool's handler thread, and each borrower plugs its own
+// callback into it.
+public class CodecPool {
+    private static final int MAX_IDLE_CODECS = 3;
+    private static final int PREWARM_SAMPLE_RATE = 44100;
+    private static final int PREWARM_CHANNELS = 2;
+
+    private static final ArrayList<Entry> sIdle = new ArrayList<Entry>();
+    private static final IdentityHashMap<MediaCodec, Entry> sInUse =
+            new IdentityHashMap<MediaCodec, Entry>();
+    private static HandlerThread sCallbackThread;
+    private static Handler sCallbackHandler;
+    private static boolean sPrewarmStarted;
+
+    private static class Entry {
+        MediaCodec codec;
+        String mimeType;
+        boolean encoder;
+        String key;  // Null until the codec is configured.
+        boolean running;
+        ForwardingCallback callback;
+        byte[] codecConfig;  // What an encoder emitted before its last flush().
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+    private static class ForwardingCallback extends MediaCodec.Callback {
+        private volatile MediaCodec.Callback mTarget;
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            MediaCodec.Callback target = mTarget;
+            if (target != null) {
+                target.onInputBufferAvailable(codec, index);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(
+                MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            MediaCodec.Callback target = mTarget;
+            if (target != null) {
+                target.onOutputBufferAvailable(codec, index, info);
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            MediaCodec.Callback target = mTarget;
+            if (target != null) {
+                target.onError(codec, e);
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            MediaCodec.Callback target = mTarget;
+            if (target != null) {
+                target.onOutputFormatChanged(codec, format);
+            }
+        }
+    }
+
+    private CodecPool() {
+    }
+
+    // The thread every asynchronous codec of the pool calls back on.
+    public static synchronized Handler getCallbackHandler() {
+        if (sCallbackHandler == null) {
+            sCallbackThread = new HandlerThread("CodecPool");
+            sCallbackThread.start();
+            sCallbackHandler = new Handler(sCallbackThread.getLooper());
+        }
+        return sCallbackHandler;
+    }
+
+    // Creates, in the background, the codecs opening and saving a typical file needs: an MP3
+    // decoder, an AAC decoder and the AAC encoder SoundFile.WriteFile() uses.
+    public static void prewarm() {
+        synchronized (CodecPool.class) {
+            if (sPrewarmStarted || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                return;
+            }
+            sPrewarmStarted = true;
+        }
+        new Thread(new Runnable() {
+            @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+            public void run() {
+                boolean async = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+                MediaFormat mp3 = MediaFormat.createAudioFormat(
+                        "audio/mpeg", PREWARM_SAMPLE_RATE, PREWARM_CHANNELS);
+                MediaFormat aac = MediaFormat.createAudioFormat(
+                        "audio/mp4a-latm", PREWARM_SAMPLE_RATE, PREWARM_CHANNELS);
+                aac.setInteger(MediaFormat.KEY_BIT_RATE, 64000 * PREWARM_CHANNELS);
+                try {
+                    addIdle(create(mp3, false, async));
+                    // Decoding AAC needs the codec config of the file, so that one stays
+                    // unconfigured.
+                    addIdle(create(aac, false, null));
+                    addIdle(create(aac, true, async));
+                } catch (IOException e) {
+                    Log.e("Ringdroid", "Failed to prewarm codecs: " + e);
+                } catch (RuntimeException e) {
+                    Log.e("Ringdroid", "Failed to prewarm codecs: " + e);
+                }
+            }
+        }, "CodecPoolPrewarm").start();
+    }
+
+    // Releases every idle codec, e.g. when the app goes to the background. The next prewarm()
+    // starts over.
+    public static void releaseIdle() {
+        ArrayList<Entry> idle;
+        synchronized (CodecPool.class) {
+            idle = new ArrayList<Entry>(sIdle);
+            sIdle.clear();
+            sPrewarmStarted = false;
+        }
+        for (Entry entry : idle) {
+            entry.codec.release();
+        }
+    }
+
+    // Returns a started codec configured with format. With a callback, the codec runs in
+    // asynchronous mode and callback is called on getCallbackHandler()'s thread.
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    static MediaCodec acquire(MediaFormat format, boolean encoder, MediaCodec.Callback callback)
+            throws IOException {
+        String mimeType = format.getString(MediaFormat.KEY_MIME);
+        String key = getKey(format, encoder, callback != null);
+        Entry entry = takeIdle(mimeType, encoder, key);
+        if (entry != null) {
+            try {
+                start(entry, format, key, callback);
+                return register(entry);
+            } catch (RuntimeException e) {
+                // The idle codec went bad; start over with a fresh one.
+                entry.codec.release();
+            }
+        }
+        entry = newEntry(mimeType, encoder);
+        try {
+            start(entry, format, key, callback);
+        } catch (RuntimeException e) {
+            entry.codec.release();
+            throw e;
+        }
+        return register(entry);
+    }
+
+    // Takes codec back after use. A codec that failed, or whose state is unknown, should come
+    // back with reusable false and is released. Asynchronous codecs must be handed back on
+    // getCallbackHandler()'s thread.
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    static void recycle(MediaCodec codec, boolean reusable) {
+        Entry entry;
+        synchronized (CodecPool.class) {
+            entry = sInUse.remove(codec);
+        }
+        if (entry == null) {
+            codec.release();
+            return;
+        }
+        if (entry.callback != null) {
+            entry.callback.mTarget = null;
+        }
+        if (reusable) {
+            try {
+                codec.flush();
+                // A flushed codec in asynchronous mode waits for start().
+                entry.running = (entry.callback == null);
+                addIdle(entry);
+                return;
+            } catch (IllegalStateException e) {
+                // Released below.
+            }
+        }
+        codec.release();
+    }
+
+    // The codec config codec emitted on its first run, which an encoder does not repeat after
+    // flush(), or null.
+    static synchronized byte[] getCodecConfig(MediaCodec codec) {
+        Entry entry = sInUse.get(codec);
+        return (entry != null) ? entry.codecConfig : null;
+    }
+
+    static synchronized void setCodecConfig(MediaCodec codec, ByteBuffer config) {
+        Entry entry = sInUse.get(codec);
+        if (entry != null) {
+            entry.codecConfig = new byte[config.remaining()];
+            config.duplicate().get(entry.codecConfig);
+        }
+    }
+
+    private static String getKey(MediaFormat format, boolean encoder, boolean async) {
+        StringBuilder key = new StringBuilder();
+        key.append(encoder ? "encoder " : "decoder ").append(async ? "async " : "sync ");
+        key.append(format.getString(MediaFormat.KEY_MIME)).append(' ');
+        key.append(format.getInteger(MediaFormat.KEY_SAMPLE_RATE)).append(' ');
+        key.append(format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+        if (encoder && format.containsKey(MediaFormat.KEY_BIT_RATE)) {
+            key.append(' ').append(format.getInteger(MediaFormat.KEY_BIT_RATE));
+        }
+        for (int i = 0; format.containsKey("csd-" + i); i++) {
+            ByteBuffer csd = format.getByteBuffer("csd-" + i);
+            key.append(" csd");
+            for (int j = csd.position(); j < csd.limit(); j++) {
+                key.append(String.format(" %02x", csd.get(j)));
+            }
+        }
+        return key.toString();
+    }
+
+    // An idle codec with the given configuration, else one that can be configured for it.
+    private static synchronized Entry takeIdle(String mimeType, boolean encoder, String key) {
+        Entry match = null;
+        for (Entry entry : sIdle) {
+            if (key.equals(entry.key)) {
+                match = entry;
+                break;
+            }
+            if (match == null && entry.encoder == encoder && entry.mimeType.equals(mimeType)
+                    && (entry.key == null
+                        || Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)) {
+                match = entry;
+            }
+        }
+        if (match != null) {
+            sIdle.remove(match);
+        }
+        return match;
+    }
+
+    private static Entry newEntry(String mimeType, boolean encoder) throws IOException {
+        Entry entry = new Entry();
+        entry.codec = encoder ?
+                MediaCodec.createEncoderByType(mimeType) : MediaCodec.createDecoderByType(mimeType);
+        entry.mimeType = mimeType;
+        entry.encoder = encoder;
+        return entry;
+    }
+
+    // A codec configured for format but not started, or just created when async is null.
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private static Entry create(MediaFormat format, boolean encoder, Boolean async)
+            throws IOException {
+        Entry entry = newEntry(format.getString(MediaFormat.KEY_MIME), encoder);
+        if (async == null) {
+            return entry;
+        }
+        try {
+            configure(entry, format, getKey(format, encoder, async), async);
+        } catch (RuntimeException e) {
+            entry.codec.release();
+            throw e;
+        }
+        return entry;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private static void configure(Entry entry, MediaFormat format, String key, boolean async) {
+        if (async && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            entry.callback = new ForwardingCallback();
+            entry.codec.setCallback(entry.callback, getCallbackHandler());
+        } else {
+            entry.callback = null;
+        }
+        entry.codec.configure(
+                format, null, null, entry.encoder ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+        entry.key = key;
+        entry.running = false;
+        entry.codecConfig = null;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private static void start(Entry entry, MediaFormat format, String key,
+                              MediaCodec.Callback callback) {
+        if (entry.key != null && !entry.key.equals(key)) {
+            // takeIdle() only hands out codecs configured for something else from Lollipop on.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                throw new IllegalStateException("Cannot reset " + entry.key);
+            }
+            entry.codec.reset();
+            entry.key = null;
+        }
+        if (entry.key == null) {
+            configure(entry, format, key, callback != null);
+        }
+        if (entry.callback != null) {
+            entry.callback.mTarget = callback;
+        }
+        if (!entry.running) {
+            entry.codec.start();
+            entry.running = true;
+        }
+    }
+
+    private static synchronized MediaCodec register(Entry entry) {
+        sInUse.put(entry.codec, entry);
+        return entry.codec;
+    }
+
+    private static void addIdle(Entry entry) {
+        Entry evicted = null;
+        synchronized (CodecPool.class) {
+            sIdle.add(entry);
+            if (sIdle.size() > MAX_IDLE_CODECS) {
+                evicted = sIdle.remove(0);
+            }
+        }
+        if (evicted != null) {
+            evicted.codec.release();
+        }
+    }
+}
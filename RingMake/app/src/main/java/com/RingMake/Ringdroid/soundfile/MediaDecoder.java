@@ -0,0 +1,349 @@
+package com.RingMake.Ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Decodes the selected track of a MediaExtractor and hands the PCM to a Sink on the calling
+// thread. From Marshmallow on, decoding runs on MediaCodec's asynchronous callbacks as three
+// stages: an extractor thread fills a small pool of packets, the codec callbacks pair those
+// packets with free input buffers on CodecPool's handler thread, and filled output buffers are
+// queued for the sink. Every stage blocks on a bounded queue while it waits. Older devices
+// poll the codec on the calling thread. Codecs come from, and go back to, CodecPool.
+class MediaDecoder {
+    interface Sink {
+        // Receives the next block of PCM and its presentation time, along with the number of
+        // compressed bytes queued so far. Returns false to stop decoding.
+        boolean onPcm(ByteBuffer pcm, long presentationTimeUs, long bytesRead)
+                throws IOException;
+    }
+
+    private static final int NUM_PACKETS = 8;
+    private static final int MIN_PACKET_SIZE = 64 * 1024;
+
+    private MediaExtractor mExtractor;
+    private MediaFormat mFormat;
+    private String mMimeType;
+    private volatile long mBytesRead;
+    private boolean mGotOutput;
+
+    // State of the asynchronous pipeline.
+    private volatile MediaCodec mCodec;  // Null until CodecPool.acquire() returns.
+    private Handler mHandler;
+    private BlockingQueue<Packet> mFreePackets;
+    private BlockingQueue<Packet> mPackets;
+    private BlockingQueue<Output> mOutputs;
+    private ArrayDeque<Integer> mInputIndices;  // Only touched on the handler thread.
+    private boolean mReleased;  // Only touched on the handler thread.
+
+    private static class Packet {
+        ByteBuffer data;
+        long presentationTimeUs;
+        boolean endOfStream;
+    }
+
+    private static class Output {
+        int index;
+        int offset;
+        int size;
+        int flags;
+        long presentationTimeUs;
+        Exception error;
+    }
+
+    MediaDecoder(MediaExtractor extractor, MediaFormat format) {
+        mExtractor = extractor;
+        mFormat = format;
+        mMimeType = format.getString(MediaFormat.KEY_MIME);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    void decode(Sink sink) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            decodeAsync(sink);
+        } else {
+            decodePolling(sink);
+        }
+    }
+
+    // AAC tracks can start with their 2 byte codec config as a sample of their own, which the
+    // decoder already got from the format.
+    private boolean isCodecConfig(boolean firstSample, int sampleSize) {
+        return firstSample && mMimeType.equals("audio/mp4a-latm") && sampleSize == 2;
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private void decodePolling(Sink sink) throws IOException {
+        MediaCodec codec = CodecPool.acquire(mFormat, false, null);
+        boolean finished = false;
+
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean done_reading = false;
+        boolean firstSampleData = true;
+        try {
+            while (true) {
+                int inputBufferIndex = codec.dequeueInputBuffer(100);
+                if (!done_reading && inputBufferIndex >= 0) {
+                    int sample_size =
+                            mExtractor.readSampleData(inputBuffers[inputBufferIndex], 0);
+                    if (isCodecConfig(firstSampleData, sample_size)) {
+                        mExtractor.advance();
+                        mBytesRead += sample_size;
+                    } else if (sample_size < 0) {
+                        codec.queueInputBuffer(
+                                inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        done_reading = true;
+                    } else {
+                        codec.queueInputBuffer(inputBufferIndex, 0, sample_size,
+                                mExtractor.getSampleTime(), 0);
+                        mExtractor.advance();
+                        mBytesRead += sample_size;
+                    }
+                    firstSampleData = false;
+                }
+
+                int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                if (outputBufferIndex >= 0) {
+                    boolean keepGoing = true;
+                    if (info.size > 0) {
+                        mGotOutput = true;
+                        ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
+                        outputBuffer.limit(info.offset + info.size);
+                        outputBuffer.position(info.offset);
+                        keepGoing =
+                                sink.onPcm(outputBuffer, info.presentationTimeUs, mBytesRead);
+                        outputBuffer.clear();
+                    }
+                    codec.releaseOutputBuffer(outputBufferIndex, false);
+                    if (!keepGoing) {
+                        break;
+                    }
+                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+            finished = true;
+        } finally {
+            // A decoder flushed before its first output may have lost its codec config.
+            CodecPool.recycle(codec, finished && mGotOutput);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void decodeAsync(Sink sink) throws IOException {
+        int packetSize = MIN_PACKET_SIZE;
+        if (mFormat.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)) {
+            packetSize = Math.max(packetSize, mFormat.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+        }
+        mFreePackets = new ArrayBlockingQueue<Packet>(NUM_PACKETS);
+        for (int i = 0; i < NUM_PACKETS; i++) {
+            Packet packet = new Packet();
+            packet.data = ByteBuffer.allocateDirect(packetSize);
+            mFreePackets.add(packet);
+        }
+        mPackets = new ArrayBlockingQueue<Packet>(NUM_PACKETS);
+        mOutputs = new LinkedBlockingQueue<Output>();
+        mInputIndices = new ArrayDeque<Integer>();
+        mReleased = false;
+
+        mHandler = CodecPool.getCallbackHandler();
+        Thread extractorThread = new Thread(new Runnable() {
+            public void run() {
+                extract();
+            }
+        }, "MediaDecoderExtractor");
+        mCodec = null;
+        boolean finished = false;
+        try {
+            mCodec = CodecPool.acquire(mFormat, false, new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    mInputIndices.add(index);
+                    feed();
+                }
+
+                @Override
+                public void onOutputBufferAvailable(
+                        MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    Output output = new Output();
+                    output.index = index;
+                    output.offset = info.offset;
+                    output.size = info.size;
+                    output.flags = info.flags;
+                    output.presentationTimeUs = info.presentationTimeUs;
+                    mOutputs.add(output);
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    postError(e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                }
+            });
+            // Input buffers offered before mCodec was set are waiting in mInputIndices.
+            mHandler.post(mFeed);
+            extractorThread.start();
+            drain(sink);
+            finished = true;
+        } finally {
+            extractorThread.interrupt();
+            try {
+                extractorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            recycleCodec(finished && mGotOutput);
+        }
+    }
+
+    // The sink stage, on the calling thread.
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void drain(Sink sink) throws IOException {
+        try {
+            while (true) {
+                Output output = mOutputs.take();
+                if (output.error != null) {
+                    throw new IOException("Decoding failed", output.error);
+                }
+                boolean keepGoing = true;
+                if (output.size > 0) {
+                    mGotOutput = true;
+                    ByteBuffer outputBuffer = mCodec.getOutputBuffer(output.index);
+                    outputBuffer.limit(output.offset + output.size);
+                    outputBuffer.position(output.offset);
+                    keepGoing = sink.onPcm(outputBuffer, output.presentationTimeUs, mBytesRead);
+                }
+                mCodec.releaseOutputBuffer(output.index, false);
+                if (!keepGoing || (output.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    // The extraction stage, on its own thread.
+    private void extract() {
+        try {
+            boolean firstSampleData = true;
+            while (true) {
+                Packet packet = mFreePackets.take();
+                packet.data.clear();
+                int sample_size = mExtractor.readSampleData(packet.data, 0);
+                if (isCodecConfig(firstSampleData, sample_size)) {
+                    mExtractor.advance();
+                    mFreePackets.add(packet);
+                    firstSampleData = false;
+                    continue;
+                }
+                firstSampleData = false;
+                packet.endOfStream = sample_size < 0;
+                if (!packet.endOfStream) {
+                    packet.data.limit(sample_size);
+                    packet.data.position(0);
+                    packet.presentationTimeUs = mExtractor.getSampleTime();
+                    mExtractor.advance();
+                }
+                mPackets.put(packet);
+                mHandler.post(mFeed);
+                if (packet.endOfStream) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The sink is done.
+        } catch (RuntimeException e) {
+            postError(e);
+        }
+    }
+
+    private final Runnable mFeed = new Runnable() {
+        public void run() {
+            feed();
+        }
+    };
+
+    // The codec feed stage, on the handler thread: pairs extracted packets with free input
+    // buffers until one of them runs out.
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void feed() {
+        try {
+            while (!mReleased && mCodec != null && !mInputIndices.isEmpty()) {
+                Packet packet = mPackets.poll();
+                if (packet == null) {
+                    return;
+                }
+                int index = mInputIndices.poll();
+                if (packet.endOfStream) {
+                    mCodec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                } else {
+                    int size = packet.data.remaining();
+                    ByteBuffer inputBuffer = mCodec.getInputBuffer(index);
+                    inputBuffer.clear();
+                    inputBuffer.put(packet.data);
+                    mCodec.queueInputBuffer(index, 0, size, packet.presentationTimeUs, 0);
+                    mBytesRead += size;
+                }
+                mFreePackets.add(packet);
+            }
+        } catch (RuntimeException e) {
+            mReleased = true;
+            postError(e);
+        }
+    }
+
+    private void postError(Exception e) {
+        Output output = new Output();
+        output.error = e;
+        mOutputs.add(output);
+    }
+
+    // Hands the codec back on the handler thread, so it never goes away under a callback.
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void recycleCodec(final boolean reusable) {
+        final CountDownLatch released = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            public void run() {
+                mReleased = true;
+                if (mCodec != null) {
+                    CodecPool.recycle(mCodec, reusable);
+                }
+                released.countDown();
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                released.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.RingMake.Ringdroid.soundfile;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.support.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Encodes the PCM of a Source and hands the encoded frames to a Sink on the calling thread.
+// From Marshmallow on, the stages overlap: a producer thread reads and converts the PCM into
+// a fixed pool of direct blocks, the codec callbacks feed those blocks to the encoder and
+// collect its output on CodecPool's handler thread, and the sink muxes the frames. Bounded
+// queues between the stages keep a slow stage from being flooded. Older devices poll the
+// codec on the calling thread. Codecs come from, and go back to, CodecPool.
+class MediaEncoder {
+    interface Source {
+        // Largest number of bytes read() puts in a buffer.
+        int getBlockSize();
+
+        // Appends the next block of 16 bit PCM to dst, which is little-endian. Returns false,
+        // adding nothing, once the source is exhausted.
+        boolean read(ByteBuffer dst) throws IOException;
+    }
+
+    interface Sink {
+        // Receives the next encoded frame; the codec config comes first.
+        void onFrame(ByteBuffer frame) throws IOException;
+    }
+
+    private static final int NUM_BLOCKS = 8;
+
+    private MediaFormat mFormat;
+    private String mMimeType;
+    private int mSampleRate;
+    private int mFrameSize;
+    private long mFramesQueued;
+    private boolean mConfigSent;
+
+    // State of the asynchronous pipeline.
+    private volatile MediaCodec mCodec;  // Null until CodecPool.acquire() returns.
+    private Handler mHandler;
+    private BlockingQueue<Block> mFreeBlocks;
+    private BlockingQueue<Block> mBlocks;
+    private BlockingQueue<Output> mOutputs;
+    private ArrayDeque<Integer> mInputIndices;  // Only touched on the handler thread.
+    private Block mPartialBlock;  // Only touched on the handler thread.
+    private boolean mFeedDone;  // Set on the handler thread once no more input can go in.
+
+    private static class Block {
+        ByteBuffer data;
+        boolean endOfStream;
+    }
+
+    private static class Output {
+        int index;
+        int offset;
+        int size;
+        int flags;
+        long presentationTimeUs;
+        Exception error;
+    }
+
+    MediaEncoder(MediaFormat format) {
+        mFormat = format;
+        mMimeType = format.getString(MediaFormat.KEY_MIME);
+        mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        mFrameSize = 2 * format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    void encode(Source source, Sink sink) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            encodeAsync(source, sink);
+        } else {
+            encodePolling(source, sink);
+        }
+    }
+
+    // Copies the whole frames of block that fit into the input buffer at index and queues
+    // them. Whatever does not fit stays in block for the next input buffer.
+    private void queueBlock(MediaCodec codec, int index, ByteBuffer inputBuffer,
+                            ByteBuffer block) {
+        inputBuffer.clear();
+        int size = Math.min(block.remaining(), inputBuffer.remaining());
+        size -= size % mFrameSize;
+        int limit = block.limit();
+        block.limit(block.position() + size);
+        inputBuffer.put(block);
+        block.limit(limit);
+        long presentationTimeUs = mFramesQueued * 1000000L / mSampleRate;
+        mFramesQueued += size / mFrameSize;
+        codec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
+    }
+
+    private void queueEndOfStream(MediaCodec codec, int index) {
+        long presentationTimeUs = mFramesQueued * 1000000L / mSampleRate;
+        codec.queueInputBuffer(
+                index, 0, 0, presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+    }
+
+    // A reused encoder does not emit its codec config again, so the copy CodecPool kept from
+    // its first run goes to the sink first.
+    private void sendSavedCodecConfig(MediaCodec codec, Sink sink) throws IOException {
+        byte[] config = CodecPool.getCodecConfig(codec);
+        mConfigSent = (config != null);
+        if (config != null) {
+            sink.onFrame(ByteBuffer.wrap(config));
+        }
+    }
+
+    private void deliver(MediaCodec codec, ByteBuffer frame, int flags, Sink sink)
+            throws IOException {
+        if ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+            if (mConfigSent) {
+                return;
+            }
+            CodecPool.setCodecConfig(codec, frame);
+            mConfigSent = true;
+        }
+        sink.onFrame(frame);
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private void encodePolling(Source source, Sink sink) throws IOException {
+        MediaCodec codec = CodecPool.acquire(mFormat, true, null);
+        boolean finished = false;
+
+        ByteBuffer[] inputBuffers = codec.getInputBuffers();
+        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        ByteBuffer block =
+                ByteBuffer.allocateDirect(source.getBlockSize()).order(ByteOrder.LITTLE_ENDIAN);
+        block.limit(0);
+        boolean done_reading = false;
+        try {
+            sendSavedCodecConfig(codec, sink);
+            while (true) {
+                int inputBufferIndex = codec.dequeueInputBuffer(100);
+                if (!done_reading && inputBufferIndex >= 0) {
+                    if (!block.hasRemaining()) {
+                        block.clear();
+                        done_reading = !source.read(block);
+                        block.flip();
+                    }
+                    if (done_reading) {
+                        queueEndOfStream(codec, inputBufferIndex);
+                    } else {
+                        queueBlock(codec, inputBufferIndex, inputBuffers[inputBufferIndex], block);
+                    }
+                }
+
+                int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
+                if (outputBufferIndex >= 0) {
+                    if (info.size > 0 && info.presentationTimeUs >= 0) {
+                        ByteBuffer outputBuffer = outputBuffers[outputBufferIndex];
+                        outputBuffer.limit(info.offset + info.size);
+                        outputBuffer.position(info.offset);
+                        deliver(codec, outputBuffer, info.flags, sink);
+                        outputBuffer.clear();
+                    }
+                    codec.releaseOutputBuffer(outputBufferIndex, false);
+                } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                    outputBuffers = codec.getOutputBuffers();
+                }
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    break;
+                }
+            }
+            finished = true;
+        } finally {
+            CodecPool.recycle(codec, finished);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void encodeAsync(final Source source, Sink sink) throws IOException {
+        mFreeBlocks = new ArrayBlockingQueue<Block>(NUM_BLOCKS);
+        for (int i = 0; i < NUM_BLOCKS; i++) {
+            Block block = new Block();
+            block.data =
+                    ByteBuffer.allocateDirect(source.getBlockSize()).order(ByteOrder.LITTLE_ENDIAN);
+            mFreeBlocks.add(block);
+        }
+        mBlocks = new ArrayBlockingQueue<Block>(NUM_BLOCKS);
+        mOutputs = new LinkedBlockingQueue<Output>();
+        mInputIndices = new ArrayDeque<Integer>();
+        mPartialBlock = null;
+        mFeedDone = false;
+
+        mHandler = CodecPool.getCallbackHandler();
+        Thread producerThread = new Thread(new Runnable() {
+            public void run() {
+                produce(source);
+            }
+        }, "MediaEncoderSource");
+        mCodec = null;
+        boolean finished = false;
+        try {
+            mCodec = CodecPool.acquire(mFormat, true, new MediaCodec.Callback() {
+                @Override
+                public void onInputBufferAvailable(MediaCodec codec, int index) {
+                    mInputIndices.add(index);
+                    feed();
+                }
+
+                @Override
+                public void onOutputBufferAvailable(
+                        MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                    Output output = new Output();
+                    output.index = index;
+                    output.offset = info.offset;
+                    output.size = info.size;
+                    output.flags = info.flags;
+                    output.presentationTimeUs = info.presentationTimeUs;
+                    mOutputs.add(output);
+                }
+
+                @Override
+                public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                    postError(e);
+                }
+
+                @Override
+                public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                }
+            });
+            // Input buffers offered before mCodec was set are waiting in mInputIndices.
+            mHandler.post(mFeed);
+            producerThread.start();
+            mux(sink);
+            finished = true;
+        } finally {
+            producerThread.interrupt();
+            try {
+                producerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            recycleCodec(finished);
+        }
+    }
+
+    // The mux stage, on the calling thread.
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void mux(Sink sink) throws IOException {
+        try {
+            sendSavedCodecConfig(mCodec, sink);
+            while (true) {
+                Output output = mOutputs.take();
+                if (output.error != null) {
+                    throw new IOException("Encoding failed", output.error);
+                }
+                if (output.size > 0 && output.presentationTimeUs >= 0) {
+                    ByteBuffer outputBuffer = mCodec.getOutputBuffer(output.index);
+                    outputBuffer.limit(output.offset + output.size);
+                    outputBuffer.position(output.offset);
+                    deliver(mCodec, outputBuffer, output.flags, sink);
+                }
+                mCodec.releaseOutputBuffer(output.index, false);
+                if ((output.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    // The source read and conversion stage, on its own thread.
+    private void produce(Source source) {
+        try {
+            while (true) {
+                Block block = mFreeBlocks.take();
+                block.data.clear();
+                block.endOfStream = !source.read(block.data);
+                block.data.flip();
+                mBlocks.put(block);
+                mHandler.post(mFeed);
+                if (block.endOfStream) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The sink is done.
+        } catch (IOException e) {
+            postError(e);
+        } catch (RuntimeException e) {
+            postError(e);
+        }
+    }
+
+    private final Runnable mFeed = new Runnable() {
+        public void run() {
+            feed();
+        }
+    };
+
+    // The encoder feed stage, on the handler thread: hands blocks to free input buffers until
+    // one of them runs out.
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void feed() {
+        try {
+            while (!mFeedDone && mCodec != null && !mInputIndices.isEmpty()) {
+                Block block = mPartialBlock;
+                if (block == null) {
+                    block = mBlocks.poll();
+                    if (block == null) {
+                        return;
+                    }
+                }
+                int index = mInputIndices.poll();
+                if (block.endOfStream) {
+                    queueEndOfStream(mCodec, index);
+                    mFeedDone = true;
+                } else {
+                    queueBlock(mCodec, index, mCodec.getInputBuffer(index), block.data);
+                }
+                if (block.data.hasRemaining()) {
+                    mPartialBlock = block;
+                } else {
+                    mPartialBlock = null;
+                    mFreeBlocks.add(block);
+                }
+            }
+        } catch (RuntimeException e) {
+            mFeedDone = true;
+            postError(e);
+        }
+    }
+
+    private void postError(Exception e) {
+        Output output = new Output();
+        output.error = e;
+        mOutputs.add(output);
+    }
+
+    // Hands the codec back on the handler thread, so it never goes away under a callback.
+    @RequiresApi(api = Build.VERSION_CODES.M)
+    private void recycleCodec(final boolean reusable) {
+        final CountDownLatch released = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            public void run() {
+                mFeedDone = true;
+                if (mCodec != null) {
+                    CodecPool.recycle(mCodec, reusable);
+                }
+                released.countDown();
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                released.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
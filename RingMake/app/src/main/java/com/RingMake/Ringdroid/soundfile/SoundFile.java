@@ -2,7 +2,6 @@ package com.RingMake.Ringdroid.soundfile;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaRecorder;
@@ -11,21 +10,49 @@ import android.os.Environment;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 
+import com.RingMake.audiocore.ChunkedSampleStore;
+import com.RingMake.audiocore.FrameGainCalculator;
+import com.RingMake.audiocore.MP3File;
+import com.RingMake.audiocore.MP4File;
+import com.RingMake.audiocore.MP4Writer;
+import com.RingMake.audiocore.PcmUtils;
+import com.RingMake.audiocore.SampleBuffer;
+import com.RingMake.audiocore.SampleStore;
+import com.RingMake.audiocore.ShortBufferSampleStore;
+import com.RingMake.audiocore.WAVFile;
+import com.RingMake.audiocore.WavWriter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Comparator;
 
 public class SoundFile {
+    private static final long REGION_PREROLL_US = 100000;
+    private static final String PEAK_FILE_DIR = "peaks";
+    private static final int PEAK_FILE_MAGIC = 0x524d504b;  // "RMPK"
+    private static final int PEAK_FILE_VERSION = 1;
+    private static final int MAX_PEAK_FILES = 200;
+    private static final int VERIFY_PCM_BLOCKS = 4;
+
     private ProgressListener mProgressListener = null;
+    private FrameGainsListener mFrameGainsListener = null;
     private File mInputFile = null;
+    private File mCacheDir = null;
 
     private String mFileType;
     private int mFileSize;
@@ -33,17 +60,21 @@ public class SoundFile {
     private int mSampleRate;
     private int mChannels;
     private int mNumSamples;
-    private ByteBuffer mDecodedBytes;
-    private ShortBuffer mDecodedSamples;
-    private int mNumFrames;
-    private int[] mFrameGains;
-    private int[] mFrameLens;
-    private int[] mFrameOffsets;
+    private SampleStore mSamples;
+    private volatile int mNumFrames;
+    private volatile int[] mFrameGains;
+    private int mExpectedNumFrames;
 
     public interface ProgressListener {
         boolean reportProgress(double fractionComplete);
     }
 
+    // Called from the decoding thread each time more frame gains are available. Until decoding
+    // is done, getNumFrames() and getFrameGains() only cover the frames decoded so far.
+    public interface FrameGainsListener {
+        void onFrameGainsUpdated(SoundFile soundFile, int numFrames);
+    }
+
     public class InvalidInputException extends Exception {
         private static final long serialVersionUID = -2505698991597837165L;
         public InvalidInputException(String message) {
@@ -69,6 +100,23 @@ public class SoundFile {
                                    ProgressListener progressListener)
         throws java.io.FileNotFoundException,
                java.io.IOException, InvalidInputException {
+        return create(fileName, null, progressListener);
+    }
+
+    public static SoundFile create(String fileName,
+                                   File cacheDir,
+                                   ProgressListener progressListener)
+        throws java.io.FileNotFoundException,
+               java.io.IOException, InvalidInputException {
+        return create(fileName, cacheDir, progressListener, null);
+    }
+
+    public static SoundFile create(String fileName,
+                                   File cacheDir,
+                                   ProgressListener progressListener,
+                                   FrameGainsListener frameGainsListener)
+        throws java.io.FileNotFoundException,
+               java.io.IOException, InvalidInputException {
         File f = new File(fileName);
         if (!f.exists()) {
             throw new java.io.FileNotFoundException(fileName);
@@ -83,7 +131,15 @@ public class SoundFile {
         }
         SoundFile soundFile = new SoundFile();
         soundFile.setProgressListener(progressListener);
-        soundFile.ReadFile(f);
+        soundFile.setCacheDir(cacheDir);
+        soundFile.setFrameGainsListener(frameGainsListener);
+        if (cacheDir != null && soundFile.ReadPeakFile(getPeakFile(cacheDir, f), f)) {
+            return soundFile;
+        }
+        soundFile.ReadFile(f, true);
+        if (cacheDir != null && soundFile.mSamples != null) {
+            soundFile.WritePeakFile(getPeakFile(cacheDir, f));
+        }
         return soundFile;
     }
 
@@ -97,6 +153,38 @@ public class SoundFile {
         return soundFile;
     }
 
+    // Checks a file written by WriteFile(), WriteWAVFile() or WriteLosslessFile() without
+    // decoding all of it: the container has to hold every frame it describes, and the
+    // decoder has to turn the first few of them into PCM.
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    public static void verify(File file) throws java.io.IOException {
+        String name = file.getName().toLowerCase();
+        int sampleRate;
+        if (name.endsWith(".wav")) {
+            WAVFile wav = WAVFile.open(file);
+            if (wav == null || !wav.isComplete() || wav.getNumFrames() == 0) {
+                throw new java.io.IOException("Incomplete WAV file " + file);
+            }
+            // Nothing to decode in PCM.
+            return;
+        } else if (name.endsWith(".m4a")) {
+            MP4File mp4 = MP4File.open(file);
+            if (mp4 == null || !mp4.isComplete() || mp4.getNumFrames() == 0) {
+                throw new java.io.IOException("Incomplete M4A file " + file);
+            }
+            sampleRate = mp4.getSampleRate();
+        } else if (name.endsWith(".mp3")) {
+            MP3File mp3 = MP3File.open(file);
+            if (mp3 == null) {
+                throw new java.io.IOException("No MPEG audio frames found in " + file);
+            }
+            sampleRate = mp3.getSampleRate();
+        } else {
+            throw new java.io.IOException("Cannot verify " + file);
+        }
+        decodeFirstFrames(file, sampleRate);
+    }
+
     public String getFiletype() {
         return mFileType;
     }
@@ -125,6 +213,11 @@ public class SoundFile {
         return mNumFrames;
     }
 
+    // Estimated from the container duration; known as soon as decoding starts.
+    public int getExpectedNumFrames() {
+        return mExpectedNumFrames;
+    }
+
     public int getSamplesPerFrame() {
         return 1024;
     }
@@ -133,14 +226,38 @@ public class SoundFile {
         return mFrameGains;
     }
 
-    public ShortBuffer getSamples() {
-        if (mDecodedSamples != null) {
-            return mDecodedSamples.asReadOnlyBuffer();
+    // False when the file was opened from the peak cache and its PCM has not been decoded yet.
+    public boolean hasSamples() {
+        return mSamples != null;
+    }
+
+    // Decodes the PCM of a file that was opened from the peak cache. The frame gains are left
+    // untouched.
+    public void decodeSamples(ProgressListener progressListener)
+        throws java.io.FileNotFoundException,
+               java.io.IOException, InvalidInputException {
+        if (mSamples != null || mInputFile == null) {
+            return;
+        }
+        mProgressListener = progressListener;
+        ReadFile(mInputFile, false);
+    }
+
+    public SampleBuffer getSamples() {
+        if (mSamples != null) {
+            return mSamples.asSampleBuffer();
         } else {
             return null;
         }
     }
 
+    public void release() {
+        if (mSamples != null) {
+            mSamples.release();
+            mSamples = null;
+        }
+    }
+
     private SoundFile() {
     }
 
@@ -148,8 +265,16 @@ public class SoundFile {
         mProgressListener = progressListener;
     }
 
+    private void setCacheDir(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    private void setFrameGainsListener(FrameGainsListener frameGainsListener) {
+        mFrameGainsListener = frameGainsListener;
+    }
+
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
-    private void ReadFile(File inputFile)
+    private void ReadFile(File inputFile, boolean computeFrameGains)
         throws java.io.FileNotFoundException,
                java.io.IOException, InvalidInputException {
         MediaExtractor extractor = new MediaExtractor();
@@ -176,142 +301,144 @@ public class SoundFile {
         mSampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
         int expectedNumSamples =
             (int)((format.getLong(MediaFormat.KEY_DURATION) / 1000000.f) * mSampleRate + 0.5f);
+        mExpectedNumFrames = (expectedNumSamples + getSamplesPerFrame() - 1) / getSamplesPerFrame();
+        FrameGainCalculator frameGains = null;
+        if (computeFrameGains) {
+            frameGains =
+                    new FrameGainCalculator(mChannels, getSamplesPerFrame(), mExpectedNumFrames);
+        }
 
-        MediaCodec codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
-        codec.configure(format, null, null, 0);
-        codec.start();
-
-        int decodedSamplesSize = 0;
-        byte[] decodedSamples = null;
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        int sample_size;
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        long presentation_time;
-        int tot_size_read = 0;
-        boolean done_reading = false;
-
-        mDecodedBytes = ByteBuffer.allocate(1<<20);
-        Boolean firstSampleData = true;
-        while (true) {
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                sample_size = extractor.readSampleData(inputBuffers[inputBufferIndex], 0);
-                if (firstSampleData
-                        && format.getString(MediaFormat.KEY_MIME).equals("audio/mp4a-latm")
-                        && sample_size == 2) {
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                } else if (sample_size < 0) {
-
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    presentation_time = extractor.getSampleTime();
-                    codec.queueInputBuffer(inputBufferIndex, 0, sample_size, presentation_time, 0);
-                    extractor.advance();
-                    tot_size_read += sample_size;
-                    if (mProgressListener != null) {
-                        if (!mProgressListener.reportProgress((float)(tot_size_read) / mFileSize)) {
-                            extractor.release();
-                            extractor = null;
-                            codec.stop();
-                            codec.release();
-                            codec = null;
-                            return;
-                        }
-                    }
+        // Decoded PCM goes to a temporary file that is memory-mapped once decoding is done. If
+        // there is no usable cache directory, it is kept in pooled heap chunks instead.
+        File pcmFile = null;
+        RandomAccessFile pcmRandomAccessFile = null;
+        FileChannel pcmChannel = null;
+        ChunkedSampleStore decodedSamples = null;
+        if (mCacheDir != null && (mCacheDir.isDirectory() || mCacheDir.mkdirs())) {
+            pcmFile = File.createTempFile("pcm", ".raw", mCacheDir);
+            pcmRandomAccessFile = new RandomAccessFile(pcmFile, "rw");
+            pcmChannel = pcmRandomAccessFile.getChannel();
+        } else {
+            decodedSamples = new ChunkedSampleStore();
+        }
+        PcmSink sink = new PcmSink(frameGains, pcmChannel, decodedSamples, expectedNumSamples);
+        try {
+            new MediaDecoder(extractor, format).decode(sink);
+            if (sink.mCancelled) {
+                if (decodedSamples != null) {
+                    decodedSamples.release();
                 }
-                firstSampleData = false;
+                return;
+            }
+            if (pcmChannel != null) {
+                ByteBuffer decodedBytes =
+                        pcmChannel.map(FileChannel.MapMode.READ_ONLY, 0, sink.mPcmSize);
+                mSamples = new ShortBufferSampleStore(decodedBytes);
+            } else {
+                mSamples = decodedSamples;
+            }
+        } finally {
+            extractor.release();
+            if (pcmRandomAccessFile != null) {
+                // The mapping stays valid after the file is closed and unlinked.
+                pcmRandomAccessFile.close();
+                pcmFile.delete();
             }
+        }
+        mNumSamples = mSamples.size() / mChannels;
+        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
 
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0) {
-                if (decodedSamplesSize < info.size) {
-                    decodedSamplesSize = info.size;
-                    decodedSamples = new byte[decodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(decodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                if (mDecodedBytes.remaining() < info.size) {
-                    int position = mDecodedBytes.position();
-                    int newSize = (int)((position * (1.0 * mFileSize / tot_size_read)) * 1.2);
-                    if (newSize - position < info.size + 5 * (1<<20)) {
-                        newSize = position + info.size + 5 * (1<<20);
-                    }
-                    ByteBuffer newDecodedBytes = null;
-                    int retry = 10;
-                    while(retry > 0) {
-                        try {
-                            newDecodedBytes = ByteBuffer.allocate(newSize);
-                            break;
-                        } catch (OutOfMemoryError oome) {
-                            retry--;
-                        }
-                    }
-                    if (retry == 0) {
-                        break;
-                    }
-                    mDecodedBytes.rewind();
-                    newDecodedBytes.put(mDecodedBytes);
-                    mDecodedBytes = newDecodedBytes;
-                    mDecodedBytes.position(position);
+        if (frameGains == null) {
+            return;
+        }
+        frameGains.finish();
+        mExpectedNumFrames = frameGains.getNumFrames();
+        publishFrameGains(frameGains);
+    }
+
+    // Decodes the first VERIFY_PCM_BLOCKS blocks of PCM of file, for verify().
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private static void decodeFirstFrames(File file, int sampleRate) throws java.io.IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(file.getPath());
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount() && format == null; i++) {
+                if (extractor.getTrackFormat(i).getString(MediaFormat.KEY_MIME)
+                        .startsWith("audio/")) {
+                    format = extractor.getTrackFormat(i);
+                    extractor.selectTrack(i);
                 }
-                mDecodedBytes.put(decodedSamples, 0, info.size);
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0
-                    || (mDecodedBytes.position() / (2 * mChannels)) >= expectedNumSamples) {
-                break;
             }
+            if (format == null) {
+                throw new java.io.IOException("No audio track found in " + file);
+            }
+            if (format.getInteger(MediaFormat.KEY_SAMPLE_RATE) != sampleRate) {
+                throw new java.io.IOException("Sample rate mismatch in " + file);
+            }
+            CountingSink sink = new CountingSink();
+            new MediaDecoder(extractor, format).decode(sink);
+            if (sink.mNumBlocks == 0) {
+                throw new java.io.IOException("No audio decoded from " + file);
+            }
+        } finally {
+            extractor.release();
+        }
+    }
+
+    private static class CountingSink implements MediaDecoder.Sink {
+        private int mNumBlocks;
+
+        @Override
+        public boolean onPcm(ByteBuffer pcm, long presentationTimeUs, long bytesRead) {
+            mNumBlocks++;
+            return mNumBlocks < VERIFY_PCM_BLOCKS;
+        }
+    }
+
+    // Where ReadFile() puts the decoded PCM: the frame gains, and either the temporary PCM
+    // file or the in-memory chunks.
+    private class PcmSink implements MediaDecoder.Sink {
+        private FrameGainCalculator mFrameGainCalculator;
+        private FileChannel mPcmChannel;
+        private ChunkedSampleStore mDecodedSamples;
+        private int mExpectedNumSamples;
+        private long mPcmSize;
+        private boolean mCancelled;
+
+        PcmSink(FrameGainCalculator frameGains, FileChannel pcmChannel,
+                ChunkedSampleStore decodedSamples, int expectedNumSamples) {
+            mFrameGainCalculator = frameGains;
+            mPcmChannel = pcmChannel;
+            mDecodedSamples = decodedSamples;
+            mExpectedNumSamples = expectedNumSamples;
         }
-        mNumSamples = mDecodedBytes.position() / (mChannels * 2);  // One sample = 2 bytes.
-        mDecodedBytes.rewind();
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
-        mAvgBitRate = (int)((mFileSize * 8) * ((float)mSampleRate / mNumSamples) / 1000);
 
-        extractor.release();
-        extractor = null;
-        codec.stop();
-        codec.release();
-        codec = null;
-
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
-        }
-        mFrameGains = new int[mNumFrames];
-        mFrameLens = new int[mNumFrames];
-        mFrameOffsets = new int[mNumFrames];
-        int j;
-        int gain, value;
-        int frameLens = (int)((1000 * mAvgBitRate / 8) *
-                ((float)getSamplesPerFrame() / mSampleRate));
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                value = 0;
-                for (int k=0; k<mChannels; k++) {
-                    if (mDecodedSamples.remaining() > 0) {
-                        value += java.lang.Math.abs(mDecodedSamples.get());
-                    }
+        public boolean onPcm(ByteBuffer pcm, long presentationTimeUs, long bytesRead)
+                throws IOException {
+            if (mProgressListener != null
+                    && !mProgressListener.reportProgress((float)bytesRead / mFileSize)) {
+                mCancelled = true;
+                return false;
+            }
+            if (mFrameGainCalculator != null) {
+                mFrameGainCalculator.add(pcm);
+                publishFrameGains(mFrameGainCalculator);
+            }
+            if (mPcmChannel != null) {
+                while (pcm.hasRemaining()) {
+                    mPcmSize += mPcmChannel.write(pcm);
                 }
-                value /= mChannels;
-                if (gain < value) {
-                    gain = value;
+            } else {
+                try {
+                    mDecodedSamples.append(pcm);
+                } catch (OutOfMemoryError oome) {
+                    return false;
                 }
             }
-            mFrameGains[i] = (int) Math.sqrt(gain);
-            mFrameLens[i] = frameLens;
-            mFrameOffsets[i] = (int)(i * (1000 * mAvgBitRate / 8) *
-                    ((float)getSamplesPerFrame() / mSampleRate));
+            long decodedSize = (mPcmChannel != null) ? mPcmSize : 2L * mDecodedSamples.size();
+            return decodedSize / (2 * mChannels) < mExpectedNumSamples;
         }
-        mDecodedSamples.rewind();
     }
 
     private void RecordAudio() {
@@ -339,68 +466,294 @@ public class SoundFile {
                 );
 
 
-        mDecodedBytes = ByteBuffer.allocate(20 * mSampleRate * 2);
-        mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-        mDecodedSamples = mDecodedBytes.asShortBuffer();
+        ChunkedSampleStore recordedSamples = new ChunkedSampleStore();
+        FrameGainCalculator frameGains = new FrameGainCalculator(1, getSamplesPerFrame(), 0);
         audioRecord.startRecording();
         while (true) {
-
-            if (mDecodedSamples.remaining() < 1024) {
-
-                int newCapacity = mDecodedBytes.capacity() + 10 * mSampleRate * 2;
-                ByteBuffer newDecodedBytes = null;
+            int numRead = audioRecord.read(buffer, 0, buffer.length);
+            if (numRead > 0) {
                 try {
-                    newDecodedBytes = ByteBuffer.allocate(newCapacity);
+                    recordedSamples.append(buffer, 0, numRead);
                 } catch (OutOfMemoryError oome) {
                     break;
                 }
-                int position = mDecodedSamples.position();
-                mDecodedBytes.rewind();
-                newDecodedBytes.put(mDecodedBytes);
-                mDecodedBytes = newDecodedBytes;
-                mDecodedBytes.order(ByteOrder.LITTLE_ENDIAN);
-                mDecodedBytes.rewind();
-                mDecodedSamples = mDecodedBytes.asShortBuffer();
-                mDecodedSamples.position(position);
-            }
-            audioRecord.read(buffer, 0, buffer.length);
-            mDecodedSamples.put(buffer);
+                frameGains.add(buffer, 0, numRead);
+            }
             if (!mProgressListener.reportProgress(
-                    (float)(mDecodedSamples.position()) / mSampleRate)) {
+                    (float)(recordedSamples.size()) / mSampleRate)) {
                 break;
             }
         }
         audioRecord.stop();
         audioRecord.release();
-        mNumSamples = mDecodedSamples.position();
-        mDecodedSamples.rewind();
-        mDecodedBytes.rewind();
+        mSamples = recordedSamples;
+        mNumSamples = mSamples.size();
         mAvgBitRate = mSampleRate * 16 / 1000;
 
-        mNumFrames = mNumSamples / getSamplesPerFrame();
-        if (mNumSamples % getSamplesPerFrame() != 0){
-            mNumFrames++;
-        }
-        mFrameGains = new int[mNumFrames];
-        mFrameLens = null;
-        mFrameOffsets = null;
-        int i, j;
-        int gain, value;
-        for (i=0; i<mNumFrames; i++){
-            gain = -1;
-            for(j=0; j<getSamplesPerFrame(); j++) {
-                if (mDecodedSamples.remaining() > 0) {
-                    value = java.lang.Math.abs(mDecodedSamples.get());
-                } else {
-                    value = 0;
+        frameGains.finish();
+        mExpectedNumFrames = frameGains.getNumFrames();
+        mFrameGains = frameGains.getFrameGains();
+        mNumFrames = frameGains.getNumFrames();
+    }
+
+    // The gains array is published before the frame count, so a reader that gets the count
+    // first always sees an array at least that long.
+    private void publishFrameGains(FrameGainCalculator frameGains) {
+        int numFrames = frameGains.getNumFrames();
+        if (numFrames == mNumFrames && frameGains.getFrameGains() == mFrameGains) {
+            return;
+        }
+        mFrameGains = frameGains.getFrameGains();
+        mNumFrames = numFrames;
+        if (mFrameGainsListener != null) {
+            mFrameGainsListener.onFrameGainsUpdated(this, numFrames);
+        }
+    }
+
+    private static File getPeakFile(File cacheDir, File inputFile) {
+        String path = inputFile.getAbsolutePath();
+        return new File(new File(cacheDir, PEAK_FILE_DIR),
+                Integer.toHexString(path.hashCode()) + ".pk");
+    }
+
+    // Restores the header fields and frame gains saved by WritePeakFile, without decoding
+    // anything. Returns false if there is no entry for this exact path, size and mtime.
+    private boolean ReadPeakFile(File peakFile, File inputFile) {
+        if (!peakFile.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(peakFile)));
+            if (in.readInt() != PEAK_FILE_MAGIC || in.readInt() != PEAK_FILE_VERSION
+                    || !in.readUTF().equals(inputFile.getAbsolutePath())
+                    || in.readLong() != inputFile.length()
+                    || in.readLong() != inputFile.lastModified()) {
+                return false;
+            }
+            String fileType = in.readUTF();
+            int sampleRate = in.readInt();
+            int channels = in.readInt();
+            int numSamples = in.readInt();
+            int avgBitRate = in.readInt();
+            int numFrames = in.readInt();
+            if (numFrames <= 0 || channels <= 0 || sampleRate <= 0) {
+                return false;
+            }
+            byte[] gainBytes = new byte[numFrames];
+            in.readFully(gainBytes);
+            int[] frameGains = new int[numFrames];
+            for (int i=0; i<numFrames; i++) {
+                frameGains[i] = gainBytes[i] & 0xFF;
+            }
+
+            mInputFile = inputFile;
+            mFileType = fileType;
+            mFileSize = (int)inputFile.length();
+            mSampleRate = sampleRate;
+            mChannels = channels;
+            mNumSamples = numSamples;
+            mAvgBitRate = avgBitRate;
+            mExpectedNumFrames = numFrames;
+            mFrameGains = frameGains;
+            mNumFrames = numFrames;
+            peakFile.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Ignoring unreadable peak file " + peakFile + ": " + e);
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
                 }
-                if (gain < value) {
-                    gain = value;
+            }
+        }
+    }
+
+    // Frame gains never exceed sqrt(32768), so one unsigned byte per frame is enough.
+    private void WritePeakFile(File peakFile) {
+        File dir = peakFile.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return;
+        }
+        trimPeakFiles(dir);
+        File tmpFile = new File(dir, peakFile.getName() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+            out.writeInt(PEAK_FILE_MAGIC);
+            out.writeInt(PEAK_FILE_VERSION);
+            out.writeUTF(mInputFile.getAbsolutePath());
+            out.writeLong(mInputFile.length());
+            out.writeLong(mInputFile.lastModified());
+            out.writeUTF(mFileType);
+            out.writeInt(mSampleRate);
+            out.writeInt(mChannels);
+            out.writeInt(mNumSamples);
+            out.writeInt(mAvgBitRate);
+            int numFrames = mNumFrames;
+            int[] frameGains = mFrameGains;
+            out.writeInt(numFrames);
+            for (int i=0; i<numFrames; i++) {
+                out.writeByte(Math.min(frameGains[i], 255));
+            }
+            out.close();
+            out = null;
+            if (!tmpFile.renameTo(peakFile)) {
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w("Ringdroid", "Failed to write peak file " + peakFile + ": " + e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
                 }
+                tmpFile.delete();
+            }
+        }
+    }
+
+    // Keeps the peak cache bounded by dropping the least recently used entries.
+    private static void trimPeakFiles(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null || files.length < MAX_PEAK_FILES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+            }
+        });
+        for (int i=0; i<=files.length - MAX_PEAK_FILES; i++) {
+            files[i].delete();
+        }
+    }
+
+    // Decodes only [startTime, endTime] of the input file, starting a little earlier so the
+    // decoder has settled by the time the region begins. Used when the whole decoded track is
+    // not held in memory.
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
+    private ChunkedSampleStore decodeRegion(float startTime, float endTime)
+            throws java.io.IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        extractor.setDataSource(mInputFile.getPath());
+        MediaFormat format = null;
+        int numTracks = extractor.getTrackCount();
+        for (int i=0; i<numTracks; i++) {
+            format = extractor.getTrackFormat(i);
+            if (format.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
+                extractor.selectTrack(i);
+                break;
+            }
+            format = null;
+        }
+        if (format == null) {
+            extractor.release();
+            throw new java.io.IOException("No audio track found in " + mInputFile);
+        }
+        long startSample = (long)(startTime * mSampleRate);
+        long endSample = startSample + (int)((endTime - startTime) * mSampleRate);
+        long seekTimeUs = (long)(startTime * 1000000) - REGION_PREROLL_US;
+        extractor.seekTo(Math.max(seekTimeUs, 0), MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+
+        RegionSink sink = new RegionSink(startSample, endSample);
+        boolean decoded = false;
+        try {
+            new MediaDecoder(extractor, format).decode(sink);
+            decoded = true;
+        } finally {
+            extractor.release();
+            if (!decoded) {
+                sink.mRegion.release();
+            }
+        }
+        return sink.mRegion;
+    }
+
+    // Keeps the samples of [startSample, endSample) for decodeRegion(), and stops the decoder
+    // once it gets past them.
+    private class RegionSink implements MediaDecoder.Sink {
+        private ChunkedSampleStore mRegion = new ChunkedSampleStore();
+        private long mStartSample;
+        private long mEndSample;
+        private long mSamplePosition = -1;
+
+        RegionSink(long startSample, long endSample) {
+            mStartSample = startSample;
+            mEndSample = endSample;
+        }
+
+        public boolean onPcm(ByteBuffer pcm, long presentationTimeUs, long bytesRead) {
+            int frameSize = 2 * mChannels;
+            if (mSamplePosition < 0) {
+                mSamplePosition = presentationTimeUs * mSampleRate / 1000000;
+            }
+            int numFrames = pcm.remaining() / frameSize;
+            long skip = Math.max(mStartSample - mSamplePosition, 0);
+            long take = Math.min(mSamplePosition + numFrames, mEndSample) - mSamplePosition - skip;
+            if (take > 0) {
+                ByteBuffer samples = pcm.duplicate();
+                samples.position(pcm.position() + (int)skip * frameSize);
+                samples.limit(samples.position() + (int)take * frameSize);
+                mRegion.append(samples);
+            }
+            mSamplePosition += numFrames;
+            return mSamplePosition < mEndSample;
+        }
+    }
+
+    // Extension of the files WriteLosslessFile() writes, or null when the input can only be
+    // saved by re-encoding it.
+    public String getLosslessFileExtension() {
+        if (mInputFile != null && "mp3".equalsIgnoreCase(mFileType)) {
+            return ".mp3";
+        }
+        // ADTS .aac files have no sample table; WriteLosslessFile() fails on those and the
+        // caller re-encodes them.
+        if (mInputFile != null && ("m4a".equalsIgnoreCase(mFileType)
+                || "aac".equalsIgnoreCase(mFileType))) {
+            return ".m4a";
+        }
+        if (mInputFile != null && "wav".equalsIgnoreCase(mFileType)) {
+            return ".wav";
+        }
+        return null;
+    }
+
+    // Copies the encoded frames of the selection to outputFile as they are, in the format
+    // of the input file.
+    public void WriteLosslessFile(File outputFile, int startFrame, int numFrames)
+            throws java.io.IOException {
+        double startTime = (double)startFrame * getSamplesPerFrame() / mSampleRate;
+        double endTime = (double)(startFrame + numFrames) * getSamplesPerFrame() / mSampleRate;
+        if (".m4a".equals(getLosslessFileExtension())) {
+            MP4File mp4 = MP4File.open(mInputFile);
+            if (mp4 == null) {
+                throw new java.io.IOException("No AAC LC sample table found in " + mInputFile);
             }
-            mFrameGains[i] = (int) Math.sqrt(gain);
+            mp4.write(outputFile, startTime, endTime);
+            return;
+        }
+        if (".wav".equals(getLosslessFileExtension())) {
+            WAVFile wav = WAVFile.open(mInputFile);
+            if (wav == null) {
+                throw new java.io.IOException("No 16 bit PCM samples found in " + mInputFile);
+            }
+            wav.write(outputFile, startTime, endTime);
+            return;
         }
-        mDecodedSamples.rewind();
+        MP3File mp3 = MP3File.open(mInputFile);
+        if (mp3 == null) {
+            throw new java.io.IOException("No MPEG audio frames found in " + mInputFile);
+        }
+        mp3.write(outputFile, startTime, endTime);
     }
 
     public void WriteFile(File outputFile, int startFrame, int numFrames)
@@ -413,149 +766,93 @@ public class SoundFile {
     @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
     public void WriteFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
+        int startOffset = (int)(startTime * mSampleRate) * mChannels;
         int numSamples = (int)((endTime - startTime) * mSampleRate);
         int numChannels = (mChannels == 1) ? 2 : mChannels;
+        SampleStore source = mSamples;
+        if (source == null) {
+            source = decodeRegion(startTime, endTime);
+            startOffset = 0;
+        }
 
         String mimeType = "audio/mp4a-latm";
         int bitrate = 64000 * numChannels;
-        MediaCodec codec = MediaCodec.createEncoderByType(mimeType);
         MediaFormat format = MediaFormat.createAudioFormat(mimeType, mSampleRate, numChannels);
         format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
-        codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-        codec.start();
-
-        int estimatedEncodedSize = (int)((endTime - startTime) * (bitrate / 8) * 1.1);
-        ByteBuffer encodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-        ByteBuffer[] inputBuffers = codec.getInputBuffers();
-        ByteBuffer[] outputBuffers = codec.getOutputBuffers();
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        boolean done_reading = false;
-        long presentation_time = 0;
 
         int frame_size = 1024;
-        byte buffer[] = new byte[frame_size * numChannels * 2];
-        mDecodedBytes.position(startOffset);
+        SampleBuffer samples = source.asSampleBuffer();
+        samples.position(startOffset);
         numSamples += (2 * frame_size);
         int tot_num_frames = 1 + (numSamples / frame_size);
         if (numSamples % frame_size != 0) {
             tot_num_frames++;
         }
-        int[] frame_sizes = new int[tot_num_frames];
-        int num_out_frames = 0;
-        int num_frames=0;
-        int num_samples_left = numSamples;
-        int encodedSamplesSize = 0;
-        byte[] encodedSamples = null;
-        while (true) {
-            int inputBufferIndex = codec.dequeueInputBuffer(100);
-            if (!done_reading && inputBufferIndex >= 0) {
-                if (num_samples_left <= 0) {
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, 0, -1, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    done_reading = true;
-                } else {
-                    inputBuffers[inputBufferIndex].clear();
-                    if (buffer.length > inputBuffers[inputBufferIndex].remaining()) {
-                        continue;
-                    }
-                    int bufferSize = (mChannels == 1) ? (buffer.length / 2) : buffer.length;
-                    if (mDecodedBytes.remaining() < bufferSize) {
-                        for (int i=mDecodedBytes.remaining(); i < bufferSize; i++) {
-                            buffer[i] = 0;
-                        }
-                        mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-                    } else {
-                        mDecodedBytes.get(buffer, 0, bufferSize);
-                    }
-                    if (mChannels == 1) {
-                        for (int i=bufferSize - 1; i >= 1; i -= 2) {
-                            buffer[2*i + 1] = buffer[i];
-                            buffer[2*i] = buffer[i-1];
-                            buffer[2*i - 1] = buffer[2*i + 1];
-                            buffer[2*i - 2] = buffer[2*i];
-                        }
-                    }
-                    num_samples_left -= frame_size;
-                    inputBuffers[inputBufferIndex].put(buffer);
-                    presentation_time = (long) (((num_frames++) * frame_size * 1e6) / mSampleRate);
-                    codec.queueInputBuffer(
-                            inputBufferIndex, 0, buffer.length, presentation_time, 0);
-                }
-            }
-
-            int outputBufferIndex = codec.dequeueOutputBuffer(info, 100);
-            if (outputBufferIndex >= 0 && info.size > 0 && info.presentationTimeUs >=0) {
-                if (num_out_frames < frame_sizes.length) {
-                    frame_sizes[num_out_frames++] = info.size;
-                }
-                if (encodedSamplesSize < info.size) {
-                    encodedSamplesSize = info.size;
-                    encodedSamples = new byte[encodedSamplesSize];
-                }
-                outputBuffers[outputBufferIndex].get(encodedSamples, 0, info.size);
-                outputBuffers[outputBufferIndex].clear();
-                codec.releaseOutputBuffer(outputBufferIndex, false);
-                if (encodedBytes.remaining() < info.size) {
-                    estimatedEncodedSize = (int)(estimatedEncodedSize * 1.2);
-                    ByteBuffer newEncodedBytes = ByteBuffer.allocate(estimatedEncodedSize);
-                    int position = encodedBytes.position();
-                    encodedBytes.rewind();
-                    newEncodedBytes.put(encodedBytes);
-                    encodedBytes = newEncodedBytes;
-                    encodedBytes.position(position);
-                }
-                encodedBytes.put(encodedSamples, 0, info.size);
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-                outputBuffers = codec.getOutputBuffers();
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-            }
-            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                break;
-            }
-        }
-        int encoded_size = encodedBytes.position();
-        encodedBytes.rewind();
-        codec.stop();
-        codec.release();
-        codec = null;
-
-        buffer = new byte[4096];
+        RandomAccessFile outputRandomAccessFile = null;
         try {
-            FileOutputStream outputStream = new FileOutputStream(outputFile);
-            outputStream.write(
-                    MP4Header.getMP4Header(mSampleRate, numChannels, frame_sizes, bitrate));
-            while (encoded_size - encodedBytes.position() > buffer.length) {
-                encodedBytes.get(buffer);
-                outputStream.write(buffer);
-            }
-            int remaining = encoded_size - encodedBytes.position();
-            if (remaining > 0) {
-                encodedBytes.get(buffer, 0, remaining);
-                outputStream.write(buffer, 0, remaining);
-            }
-            outputStream.close();
+            // Frames are written as they are encoded; the header is patched in at the end.
+            outputRandomAccessFile = new RandomAccessFile(outputFile, "rw");
+            final MP4Writer writer = new MP4Writer(outputRandomAccessFile.getChannel(),
+                    mSampleRate, numChannels, bitrate, tot_num_frames);
+            new MediaEncoder(format).encode(
+                    new PcmSource(samples, numSamples, frame_size, numChannels),
+                    new MediaEncoder.Sink() {
+                        public void onFrame(ByteBuffer frame) throws IOException {
+                            writer.writeFrame(frame);
+                        }
+                    });
+            writer.finish();
         } catch (IOException e) {
             Log.e("Ringdroid", "Failed to create the .m4a file.");
             Log.e("Ringdroid", getStackTrace(e));
+        } finally {
+            if (outputRandomAccessFile != null) {
+                outputRandomAccessFile.close();
+            }
+            if (source != mSamples) {
+                source.release();
+            }
         }
     }
 
-    private void swapLeftRightChannels(byte[] buffer) {
-        byte left[] = new byte[2];
-        byte right[] = new byte[2];
-        if (buffer.length % 4 != 0) {
-            return;
+    // Reads numSamples sample frames of samples, padded with silence past the end, in blocks
+    // of frameSize frames. Mono is upmixed to the numChannels channels of the encoder.
+    private class PcmSource implements MediaEncoder.Source {
+        private SampleBuffer mSource;
+        private int mNumSamplesLeft;
+        private int mFrameSize;
+        private int mNumChannels;
+        private short[] mBuffer;
+
+        PcmSource(SampleBuffer samples, int numSamples, int frameSize, int numChannels) {
+            mSource = samples;
+            mNumSamplesLeft = numSamples;
+            mFrameSize = frameSize;
+            mNumChannels = numChannels;
+            mBuffer = new short[frameSize * mChannels];
+        }
+
+        public int getBlockSize() {
+            return 2 * mFrameSize * mNumChannels;
         }
-        for (int offset = 0; offset < buffer.length; offset += 4) {
-            left[0] = buffer[offset];
-            left[1] = buffer[offset + 1];
-            right[0] = buffer[offset + 2];
-            right[1] = buffer[offset + 3];
-            buffer[offset] = right[0];
-            buffer[offset + 1] = right[1];
-            buffer[offset + 2] = left[0];
-            buffer[offset + 3] = left[1];
+
+        public boolean read(ByteBuffer dst) {
+            if (mNumSamplesLeft <= 0) {
+                return false;
+            }
+            PcmUtils.readSamples(mSource, mBuffer, mBuffer.length);
+            if (mChannels == 1) {
+                for (int i = 0; i < mBuffer.length; i++) {
+                    dst.putShort(mBuffer[i]);
+                    dst.putShort(mBuffer[i]);
+                }
+            } else {
+                for (int i = 0; i < mBuffer.length; i++) {
+                    dst.putShort(mBuffer[i]);
+                }
+            }
+            mNumSamplesLeft -= mFrameSize;
+            return true;
         }
     }
 
@@ -566,47 +863,27 @@ public class SoundFile {
         WriteWAVFile(outputFile, startTime, endTime);
     }
 
+    @RequiresApi(api = Build.VERSION_CODES.JELLY_BEAN)
     public void WriteWAVFile(File outputFile, float startTime, float endTime)
             throws java.io.IOException {
-        int startOffset = (int)(startTime * mSampleRate) * 2 * mChannels;
+        int startOffset = (int)(startTime * mSampleRate) * mChannels;
         int numSamples = (int)((endTime - startTime) * mSampleRate);
+        SampleStore source = mSamples;
+        if (source == null) {
+            source = decodeRegion(startTime, endTime);
+            startOffset = 0;
+        }
 
         FileOutputStream outputStream = new FileOutputStream(outputFile);
-        outputStream.write(WAVHeader.getWAVHeader(mSampleRate, mChannels, numSamples));
-
-        byte buffer[] = new byte[1024 * mChannels * 2];
-        mDecodedBytes.position(startOffset);
-        int numBytesLeft = numSamples * mChannels * 2;
-        while (numBytesLeft >= buffer.length) {
-            if (mDecodedBytes.remaining() < buffer.length) {
-                for (int i = mDecodedBytes.remaining(); i < buffer.length; i++) {
-                    buffer[i] = 0;
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer);
-            }
-            if (mChannels == 2) {
-                swapLeftRightChannels(buffer);
-            }
-            outputStream.write(buffer);
-            numBytesLeft -= buffer.length;
+        try {
+            WavWriter.write(source, startOffset, numSamples, mSampleRate, mChannels,
+                    outputStream.getChannel());
+        } finally {
+            outputStream.close();
         }
-        if (numBytesLeft > 0) {
-            if (mDecodedBytes.remaining() < numBytesLeft) {
-                for (int i = mDecodedBytes.remaining(); i < numBytesLeft; i++) {
-                    buffer[i] = 0;
-                }
-                mDecodedBytes.get(buffer, 0, mDecodedBytes.remaining());
-            } else {
-                mDecodedBytes.get(buffer, 0, numBytesLeft);
-            }
-            if (mChannels == 2) {
-                swapLeftRightChannels(buffer);
-            }
-            outputStream.write(buffer, 0, numBytesLeft);
+        if (source != mSamples) {
+            source.release();
         }
-        outputStream.close();
     }
 
     private void DumpSamples(String fileName) {
@@ -627,7 +904,7 @@ public class SoundFile {
 
         BufferedWriter writer = null;
         float presentationTime = 0;
-        mDecodedSamples.rewind();
+        SampleBuffer samples = getSamples();
         String row;
         try {
             writer = new BufferedWriter(new FileWriter(outFile));
@@ -635,7 +912,7 @@ public class SoundFile {
                 presentationTime = (float)(sampleIndex) / mSampleRate;
                 row = Float.toString(presentationTime);
                 for (int channelIndex = 0; channelIndex < mChannels; channelIndex++) {
-                    row += "\t" + mDecodedSamples.get();
+                    row += "\t" + samples.get();
                 }
                 row += "\n";
                 writer.write(row);
@@ -650,7 +927,6 @@ public class SoundFile {
             Log.w("Ringdroid", "Failed to close sample TSV file.");
             Log.w("Ringdroid", getStackTrace(e));
         }
-        mDecodedSamples.rewind();
     }
 
     private void DumpSamples() {
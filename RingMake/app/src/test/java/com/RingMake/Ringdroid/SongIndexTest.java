@@ -0,0 +1,55 @@
+package com.RingMake.Ringdroid;
+
+import com.RingMake.Models.SongsModel;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class SongIndexTest {
+    private static final SongIndex INDEX = new SongIndex(Arrays.asList(
+            song("0", "Hey Jude", "The Beatles", "Past Masters"),
+            song("1", "Bohemian Rhapsody", "Queen", "A Night at the Opera"),
+            song("2", "Jump", "Van Halen", "1984"),
+            song("3", "Don't Stop Me Now", "Queen", "Jazz"),
+            song("4", "Beat It", "Michael Jackson", null)));
+
+    private static SongsModel song(String id, String title, String artist, String album) {
+        return new SongsModel(id, title, artist, "1000", album, "/sdcard/" + id + ".mp3", "0",
+                Constants.IS_MUSIC);
+    }
+
+    private static String ids(ArrayList<SongsModel> songs) {
+        StringBuilder ids = new StringBuilder();
+        for (SongsModel song : songs) {
+            ids.append(song._ID);
+        }
+        return ids.toString();
+    }
+
+    @Test
+    public void emptyQueryKeepsWholeLibraryInOrder() throws Exception {
+        assertEquals("01234", ids(INDEX.search(null)));
+        assertEquals("01234", ids(INDEX.search("  - ")));
+    }
+
+    @Test
+    public void shortWordsMatchWordPrefixes() throws Exception {
+        assertEquals("0234", ids(INDEX.search("j")));
+        assertEquals("2", ids(INDEX.search("JU van")));
+        assertEquals("", ids(INDEX.search("ue")));
+    }
+
+    @Test
+    public void longerWordsMatchInsideTitleArtistAndAlbum() throws Exception {
+        assertEquals("04", ids(INDEX.search("beat")));
+        assertEquals("13", ids(INDEX.search("een")));
+        assertEquals("3", ids(INDEX.search("queen don't")));
+        assertEquals("2", ids(INDEX.search("198")));
+        assertEquals("", ids(INDEX.search("jazzy")));
+        assertEquals("", ids(INDEX.search("jude queen")));
+    }
+}
@@ -0,0 +1,69 @@
+package com.RingMake.Ringdroid;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimecodeFormatterTest {
+    private static final TimecodeFormatter.TextMeasurer MEASURER =
+            new TimecodeFormatter.TextMeasurer() {
+                public float measureText(char[] text, int index, int count) {
+                    return 7.0f * count;
+                }
+            };
+
+    private static String format(TimecodeFormatter formatter, int seconds) {
+        int len = formatter.format(seconds);
+        return new String(formatter.getChars(), 0, len);
+    }
+
+    @Test
+    public void formatsMinutesAndSeconds() throws Exception {
+        TimecodeFormatter formatter = new TimecodeFormatter(MEASURER);
+        assertEquals("0:00", format(formatter, 0));
+        assertEquals("0:07", format(formatter, 7));
+        assertEquals("1:00", format(formatter, 60));
+        assertEquals("12:34", format(formatter, 754));
+        assertEquals("100:00", format(formatter, 6000));
+        assertEquals(42.0f, formatter.getWidth(6000), 0.0f);
+    }
+
+    // Mirrors the timecode loop of WaveformView.onDraw while the view scrolls over a song that
+    // has already been drawn once.
+    @Test
+    public void steadyStateFrameDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        TimecodeFormatter formatter = new TimecodeFormatter(MEASURER);
+        int songSeconds = 600;
+        float sink = drawFrames(formatter, songSeconds);
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        sink += drawFrames(formatter, songSeconds);
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(0L, allocated);
+        assertTrue(sink > 0);
+    }
+
+    private static float drawFrames(TimecodeFormatter formatter, int songSeconds) {
+        float sink = 0;
+        for (int firstSecond = 0; firstSecond < songSeconds; firstSecond++) {
+            for (int secs = firstSecond; secs < firstSecond + 20 && secs < songSeconds; secs++) {
+                float offset = 0.5f * formatter.getWidth(secs);
+                int len = formatter.format(secs);
+                sink += offset + formatter.getChars()[len - 1];
+            }
+        }
+        return sink;
+    }
+}
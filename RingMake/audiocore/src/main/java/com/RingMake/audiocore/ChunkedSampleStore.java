@@ -0,0 +1,108 @@
+package com.RingMake.audiocore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+// Growable sample store made of fixed-size chunks. Appending never copies what is already
+// stored, and released chunks go back to a small process-wide pool for the next store.
+public class ChunkedSampleStore extends SampleStore {
+    public static final int CHUNK_SHIFT = 16;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;  // 128 KB per chunk.
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int MAX_POOLED_CHUNKS = 32;
+    private static final ArrayDeque<short[]> sChunkPool = new ArrayDeque<>();
+
+    private ArrayList<short[]> mChunks;
+    private int mSize;
+
+    public ChunkedSampleStore() {
+        mChunks = new ArrayList<>();
+        mSize = 0;
+    }
+
+    private static short[] obtainChunk() {
+        synchronized (sChunkPool) {
+            short[] chunk = sChunkPool.poll();
+            if (chunk != null) {
+                return chunk;
+            }
+        }
+        return new short[CHUNK_SIZE];
+    }
+
+    private static void recycleChunk(short[] chunk) {
+        synchronized (sChunkPool) {
+            if (sChunkPool.size() < MAX_POOLED_CHUNKS) {
+                sChunkPool.push(chunk);
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public short get(int index) {
+        return mChunks.get(index >> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    @Override
+    public void get(int index, short[] dst, int offset, int length) {
+        while (length > 0) {
+            int chunkOffset = index & CHUNK_MASK;
+            int count = Math.min(length, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(mChunks.get(index >> CHUNK_SHIFT), chunkOffset, dst, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // The chunks are plain short arrays, so there are no bytes to share.
+    @Override
+    public ByteBuffer getBytes(int index, int length) {
+        return null;
+    }
+
+    public void append(short[] src, int offset, int length) {
+        while (length > 0) {
+            int chunkOffset = mSize & CHUNK_MASK;
+            if (chunkOffset == 0 && (mSize >> CHUNK_SHIFT) == mChunks.size()) {
+                mChunks.add(obtainChunk());
+            }
+            int count = Math.min(length, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(src, offset, mChunks.get(mSize >> CHUNK_SHIFT), chunkOffset, count);
+            mSize += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Appends the remaining bytes of src, read as little-endian 16 bit PCM.
+    public void append(ByteBuffer src) {
+        ShortBuffer samples = src.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        while (samples.hasRemaining()) {
+            int chunkOffset = mSize & CHUNK_MASK;
+            if (chunkOffset == 0 && (mSize >> CHUNK_SHIFT) == mChunks.size()) {
+                mChunks.add(obtainChunk());
+            }
+            int count = Math.min(samples.remaining(), CHUNK_SIZE - chunkOffset);
+            samples.get(mChunks.get(mSize >> CHUNK_SHIFT), chunkOffset, count);
+            mSize += count;
+        }
+    }
+
+    @Override
+    public void release() {
+        for (short[] chunk : mChunks) {
+            recycleChunk(chunk);
+        }
+        mChunks.clear();
+        mSize = 0;
+    }
+}
@@ -0,0 +1,131 @@
+package com.RingMake.audiocore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+// Computes per-frame gains while the interleaved PCM is streamed in, so gains for the first
+// frames are available long before the whole file is decoded.
+// Incoming samples are bulk copied into a reused block of whole frames, and each full block
+// is reduced frame by frame in tight loops with no per-sample bookkeeping.
+public class FrameGainCalculator {
+    private static final int FRAMES_PER_BLOCK = 16;
+
+    private int mChannels;
+    private int mSamplesPerFrame;
+    private int mFrameLength;  // Interleaved samples per frame.
+    private short[] mBlock;
+    private int mBlockFill;
+    private int[] mFrameGains;
+    private int mNumFrames;
+
+    public FrameGainCalculator(int channels, int samplesPerFrame, int expectedNumFrames) {
+        mChannels = channels;
+        mSamplesPerFrame = samplesPerFrame;
+        mFrameLength = samplesPerFrame * channels;
+        mBlock = new short[FRAMES_PER_BLOCK * mFrameLength];
+        mBlockFill = 0;
+        mFrameGains = new int[Math.max(expectedNumFrames, 16)];
+        mNumFrames = 0;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // May be longer than getNumFrames() until finish() is called.
+    public int[] getFrameGains() {
+        return mFrameGains;
+    }
+
+    // Adds the remaining bytes of src, read as little-endian 16 bit PCM. src is not modified.
+    public void add(ByteBuffer src) {
+        ShortBuffer samples = src.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        while (samples.hasRemaining()) {
+            int count = Math.min(samples.remaining(), mBlock.length - mBlockFill);
+            samples.get(mBlock, mBlockFill, count);
+            mBlockFill += count;
+            if (mBlockFill == mBlock.length) {
+                addFrames(mBlock, 0, FRAMES_PER_BLOCK);
+                mBlockFill = 0;
+            }
+        }
+    }
+
+    public void add(short[] src, int offset, int length) {
+        int end = offset + length;
+        // Whole frames can be reduced straight from src once the block is empty.
+        if (mBlockFill == 0 && length >= mFrameLength) {
+            int numFrames = length / mFrameLength;
+            addFrames(src, offset, numFrames);
+            offset += numFrames * mFrameLength;
+        }
+        while (offset < end) {
+            int count = Math.min(end - offset, mBlock.length - mBlockFill);
+            System.arraycopy(src, offset, mBlock, mBlockFill, count);
+            mBlockFill += count;
+            offset += count;
+            if (mBlockFill == mBlock.length) {
+                addFrames(mBlock, 0, FRAMES_PER_BLOCK);
+                mBlockFill = 0;
+            }
+        }
+    }
+
+    public void finish() {
+        int numFrames = mBlockFill / mFrameLength;
+        addFrames(mBlock, 0, numFrames);
+        // A trailing partial frame still gets a gain; a partial sample group is dropped.
+        int tail = (mBlockFill - numFrames * mFrameLength) / mChannels;
+        if (tail > 0) {
+            addFrame(maxGain(mBlock, numFrames * mFrameLength, tail));
+        }
+        mBlockFill = 0;
+        if (mFrameGains.length != mNumFrames) {
+            mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames);
+        }
+    }
+
+    private void addFrames(short[] src, int offset, int numFrames) {
+        if (mNumFrames + numFrames > mFrameGains.length) {
+            mFrameGains = Arrays.copyOf(mFrameGains,
+                    Math.max(mNumFrames + numFrames, mFrameGains.length * 2));
+        }
+        for (int i = 0; i < numFrames; i++) {
+            mFrameGains[mNumFrames++] =
+                    (int) Math.sqrt(maxGain(src, offset + i * mFrameLength, mSamplesPerFrame));
+        }
+    }
+
+    private void addFrame(int maxGain) {
+        if (mNumFrames == mFrameGains.length) {
+            mFrameGains = Arrays.copyOf(mFrameGains, mNumFrames * 2);
+        }
+        mFrameGains[mNumFrames++] = (int) Math.sqrt(maxGain);
+    }
+
+    // Largest channel-averaged magnitude of numSamples interleaved sample groups.
+    private int maxGain(short[] src, int offset, int numSamples) {
+        int max = 0;
+        int end = offset + numSamples * mChannels;
+        if (mChannels == 1) {
+            for (int i = offset; i < end; i++) {
+                max = Math.max(max, Math.abs(src[i]));
+            }
+        } else if (mChannels == 2) {
+            for (int i = offset; i < end; i += 2) {
+                max = Math.max(max, (Math.abs(src[i]) + Math.abs(src[i + 1])) >> 1);
+            }
+        } else {
+            for (int i = offset; i < end; i += mChannels) {
+                int value = 0;
+                for (int c = 0; c < mChannels; c++) {
+                    value += Math.abs(src[i + c]);
+                }
+                max = Math.max(max, value / mChannels);
+            }
+        }
+        return max;
+    }
+}
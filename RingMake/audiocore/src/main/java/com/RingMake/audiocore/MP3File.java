@@ -0,0 +1,326 @@
+package com.RingMake.audiocore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Frame index of an MPEG audio layer III file, used to cut it on frame boundaries without
+// decoding anything. The selected frames are copied byte for byte behind a fresh Xing/Info
+// frame, together with the few frames before the cut whose bytes the first frame borrows
+// through the bit reservoir. Those lead-in frames are announced as encoder delay in the
+// LAME tag, so gapless decoders skip them.
+public class MP3File {
+    // Bitrates in kbps, for MPEG 1 and for MPEG 2/2.5.
+    private static final int[][] BITRATES = {
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    // Sample rates indexed by the version bits: MPEG 2.5, reserved, MPEG 2, MPEG 1.
+    private static final int[][] SAMPLE_RATES = {
+            {11025, 12000, 8000}, null, {22050, 24000, 16000}, {44100, 48000, 32000}
+    };
+    // Sync word, version, layer and sample rate; every frame of a stream must agree on them.
+    private static final int HEADER_MASK = 0xFFFE0C00;
+    private static final int XING_SIZE = 4 + 4 + 4 + 4 + 100 + 4;
+    private static final int LAME_SIZE = 36;
+    private static final int MAX_ENCODER_DELAY = 4095;
+
+    private File mFile;
+    private int mHeader;
+    private int mSampleRate;
+    private int mSamplesPerFrame;
+    private int mNumFrames;
+    private int[] mFrameOffsets;
+    private int[] mFrameHeaders;
+    private int[] mMainDataBegin;
+    private int[] mMainDataSize;
+    private byte[] mEncoder;
+
+    private MP3File(File file) {
+        mFile = file;
+        mFrameOffsets = new int[1024];
+        mFrameHeaders = new int[1024];
+        mMainDataBegin = new int[1024];
+        mMainDataSize = new int[1024];
+    }
+
+    // Returns null when file does not look like a layer III stream.
+    public static MP3File open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer bytes =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            MP3File mp3 = new MP3File(file);
+            return mp3.scan(bytes) ? mp3 : null;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getSamplesPerFrame() {
+        return mSamplesPerFrame;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Writes the frames covering [startTime, endTime) seconds to outputFile.
+    public void write(File outputFile, double startTime, double endTime) throws IOException {
+        // The tolerance keeps times computed from frame boundaries on those boundaries.
+        int startFrame = (int) Math.floor(startTime * mSampleRate / mSamplesPerFrame + 1e-6);
+        int endFrame = (int) Math.ceil(endTime * mSampleRate / mSamplesPerFrame - 1e-6);
+        // Keep at least the two frames open() needs to recognize the copy.
+        startFrame = Math.max(0, Math.min(startFrame, mNumFrames - 2));
+        endFrame = Math.max(startFrame + 2, Math.min(endFrame, mNumFrames));
+
+        int firstFrame = startFrame;
+        int borrowed = mMainDataBegin[startFrame];
+        while (borrowed > 0 && firstFrame > 0) {
+            firstFrame--;
+            borrowed -= mMainDataSize[firstFrame];
+        }
+        if ((startFrame - firstFrame) * mSamplesPerFrame > MAX_ENCODER_DELAY) {
+            firstFrame = startFrame;
+        }
+
+        long start = mFrameOffsets[firstFrame];
+        long length =
+                mFrameOffsets[endFrame - 1] + getFrameLength(mFrameHeaders[endFrame - 1]) - start;
+        byte[] infoFrame = makeInfoFrame(firstFrame, endFrame, startFrame - firstFrame, length);
+
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+        FileOutputStream output = new FileOutputStream(outputFile);
+        try {
+            FileChannel out = output.getChannel();
+            ByteBuffer info = ByteBuffer.wrap(infoFrame);
+            while (info.hasRemaining()) {
+                out.write(info);
+            }
+            FileChannel in = input.getChannel();
+            long position = start;
+            while (position < start + length) {
+                long count = in.transferTo(position, start + length - position, out);
+                if (count <= 0) {
+                    throw new IOException("Unexpected end of " + mFile);
+                }
+                position += count;
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+    private boolean scan(ByteBuffer bytes) {
+        int end = bytes.limit();
+        int pos = skipId3v2(bytes);
+        boolean first = true;
+        while (pos + 4 <= end) {
+            if (end - pos == 128 && isTag(bytes, pos, "TAG")) {
+                break;
+            }
+            int header = bytes.getInt(pos);
+            int length = getFrameLength(header);
+            if (length <= 0 || pos + length > end || !isNextFrame(bytes, pos + length, header)
+                    || (!first && (header & HEADER_MASK) != (mHeader & HEADER_MASK))) {
+                pos++;
+                continue;
+            }
+            if (first) {
+                first = false;
+                mHeader = header;
+                int version = (header >> 19) & 3;
+                mSampleRate = SAMPLE_RATES[version][(header >> 10) & 3];
+                mSamplesPerFrame = (version == 3) ? 1152 : 576;
+                if (readInfoFrame(bytes, pos, header)) {
+                    pos += length;
+                    continue;
+                }
+            }
+            addFrame(bytes, pos, length, header);
+            pos += length;
+        }
+        return mNumFrames >= 2;
+    }
+
+    private void addFrame(ByteBuffer bytes, int pos, int length, int header) {
+        if (mNumFrames == mFrameOffsets.length) {
+            int capacity = mNumFrames * 2;
+            mFrameOffsets = Arrays.copyOf(mFrameOffsets, capacity);
+            mFrameHeaders = Arrays.copyOf(mFrameHeaders, capacity);
+            mMainDataBegin = Arrays.copyOf(mMainDataBegin, capacity);
+            mMainDataSize = Arrays.copyOf(mMainDataSize, capacity);
+        }
+        int sideInfo = pos + 4 + (((header >> 16) & 1) == 0 ? 2 : 0);
+        int mainDataBegin;
+        if (((header >> 19) & 3) == 3) {
+            mainDataBegin =
+                    ((bytes.get(sideInfo) & 0xFF) << 1) | ((bytes.get(sideInfo + 1) & 0xFF) >> 7);
+        } else {
+            mainDataBegin = bytes.get(sideInfo) & 0xFF;
+        }
+        mFrameOffsets[mNumFrames] = pos;
+        mFrameHeaders[mNumFrames] = header;
+        mMainDataBegin[mNumFrames] = mainDataBegin;
+        mMainDataSize[mNumFrames] = pos + length - sideInfo - getSideInfoSize(header);
+        mNumFrames++;
+    }
+
+    // Accepts the frame at pos when the next one follows right after it or the stream ends.
+    private boolean isNextFrame(ByteBuffer bytes, int pos, int header) {
+        int end = bytes.limit();
+        if (pos + 4 > end || isTag(bytes, pos, "TAG") || isTag(bytes, pos, "APETAGEX")) {
+            return true;
+        }
+        int next = bytes.getInt(pos);
+        return (next & HEADER_MASK) == (header & HEADER_MASK) && getFrameLength(next) > 0;
+    }
+
+    // Recognizes a Xing, Info or VBRI frame, which carries no audio, and keeps the encoder
+    // name of its LAME tag if it has one.
+    private boolean readInfoFrame(ByteBuffer bytes, int pos, int header) {
+        int xing = pos + 4 + getSideInfoSize(header);
+        if (isTag(bytes, xing, "Xing") || isTag(bytes, xing, "Info")) {
+            int flags = bytes.getInt(xing + 4);
+            int lame = xing + 8;
+            lame += ((flags & 1) != 0) ? 4 : 0;
+            lame += ((flags & 2) != 0) ? 4 : 0;
+            lame += ((flags & 4) != 0) ? 100 : 0;
+            lame += ((flags & 8) != 0) ? 4 : 0;
+            if (isTag(bytes, lame, "LAME") || isTag(bytes, lame, "Lavf")
+                    || isTag(bytes, lame, "Lavc")) {
+                mEncoder = new byte[9];
+                for (int i = 0; i < mEncoder.length; i++) {
+                    mEncoder[i] = bytes.get(lame + i);
+                }
+            }
+            return true;
+        }
+        return isTag(bytes, pos + 4 + 32, "VBRI");
+    }
+
+    private byte[] makeInfoFrame(int firstFrame, int endFrame, int leadInFrames, long length) {
+        int sideInfoSize = getSideInfoSize(mHeader);
+        int needed = 4 + sideInfoSize + XING_SIZE + LAME_SIZE;
+        int header = mHeader | 0x00010000;  // No CRC.
+        header &= ~0x0000F200;  // Clear the bitrate and padding bits.
+        int frameLength = 0;
+        for (int index = 1; index < 15 && frameLength < needed; index++) {
+            frameLength = getFrameLength(header | (index << 12));
+            if (frameLength >= needed) {
+                header |= index << 12;
+            }
+        }
+        ByteBuffer frame = ByteBuffer.allocate(frameLength);
+        frame.putInt(header);
+        frame.position(4 + sideInfoSize);
+
+        boolean constantBitrate = true;
+        for (int i = firstFrame + 1; i < endFrame; i++) {
+            if (((mFrameHeaders[i] ^ mFrameHeaders[firstFrame]) & 0x0000F000) != 0) {
+                constantBitrate = false;
+                break;
+            }
+        }
+        int numFrames = endFrame - firstFrame;
+        long totalBytes = frameLength + length;
+        frame.put((constantBitrate ? "Info" : "Xing").getBytes());
+        frame.putInt(0x0F);
+        frame.putInt(numFrames);
+        frame.putInt((int) totalBytes);
+        for (int i = 0; i < 100; i++) {
+            int f = firstFrame + i * numFrames / 100;
+            long offset = frameLength + mFrameOffsets[f] - mFrameOffsets[firstFrame];
+            frame.put((byte) Math.min(255, offset * 256 / totalBytes));
+        }
+        frame.putInt(0);  // Quality.
+
+        int lame = frame.position();
+        frame.put(mEncoder != null ? mEncoder : "RingMake ".getBytes());
+        frame.position(lame + 21);
+        int delay = leadInFrames * mSamplesPerFrame;
+        frame.put((byte) (delay >> 4));
+        frame.put((byte) ((delay & 0x0F) << 4));
+        frame.put((byte) 0);
+        frame.position(lame + 28);
+        frame.putInt((int) totalBytes);
+        frame.position(lame + 34);
+        int crc = 0;
+        for (int i = 0; i < lame + 34; i++) {
+            crc = crc16(crc, frame.get(i) & 0xFF);
+        }
+        frame.putShort((short) crc);
+        return frame.array();
+    }
+
+    private static int crc16(int crc, int value) {
+        crc ^= value;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = ((crc & 1) != 0) ? (crc >>> 1) ^ 0xA001 : crc >>> 1;
+        }
+        return crc;
+    }
+
+    // Length in bytes of the layer III frame starting with header, or 0 if it is not one.
+    private static int getFrameLength(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) {
+            return 0;
+        }
+        int version = (header >> 19) & 3;
+        int layer = (header >> 17) & 3;
+        int bitrateIndex = (header >> 12) & 15;
+        int sampleRateIndex = (header >> 10) & 3;
+        if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15
+                || sampleRateIndex == 3) {
+            return 0;
+        }
+        int bitrate = BITRATES[version == 3 ? 0 : 1][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+        int padding = (header >> 9) & 1;
+        return ((version == 3) ? 144 : 72) * bitrate / sampleRate + padding;
+    }
+
+    private static int getSideInfoSize(int header) {
+        boolean mono = ((header >> 6) & 3) == 3;
+        if (((header >> 19) & 3) == 3) {
+            return mono ? 17 : 32;
+        }
+        return mono ? 9 : 17;
+    }
+
+    private static int skipId3v2(ByteBuffer bytes) {
+        int pos = 0;
+        while (bytes.limit() - pos >= 10 && isTag(bytes, pos, "ID3")) {
+            int size = 0;
+            for (int i = 6; i < 10; i++) {
+                size = (size << 7) | (bytes.get(pos + i) & 0x7F);
+            }
+            boolean footer = (bytes.get(pos + 5) & 0x10) != 0;
+            pos += 10 + size + (footer ? 10 : 0);
+        }
+        return Math.min(pos, bytes.limit());
+    }
+
+    private static boolean isTag(ByteBuffer bytes, int pos, String tag) {
+        if (pos < 0 || pos + tag.length() > bytes.limit()) {
+            return false;
+        }
+        for (int i = 0; i < tag.length(); i++) {
+            if (bytes.get(pos + i) != tag.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,397 @@
+package com.RingMake.audiocore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Sample table of the AAC track of an MP4 (.m4a) file, used to cut it on access unit
+// boundaries without decoding anything. The selected access units are copied byte for byte
+// into a file laid out like the ones MP4Header describes: one chunk, preceded by the 2 byte
+// codec config. Only AAC LC tracks with 1024 samples per access unit fit that layout; open()
+// returns null for anything else.
+public class MP4File {
+    private static final int[] SAMPLING_FREQUENCIES = new int[]{96000, 88200, 64000, 48000,
+            44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350};
+    private static final int SAMPLES_PER_FRAME = 1024;
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    private File mFile;
+    private int mSampleRate;
+    private int mChannels;
+    private int mNumFrames;
+    private long[] mFrameOffsets;
+    private int[] mFrameSizes;
+
+    private MP4File(File file) {
+        mFile = file;
+    }
+
+    // Returns null when file has no AAC LC track this class can copy.
+    public static MP4File open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer moov = readMoov(randomAccessFile.getChannel());
+            if (moov == null) {
+                return null;
+            }
+            MP4File mp4 = new MP4File(file);
+            int trak = 8;
+            while ((trak = findAtom(moov, trak, moov.limit(), "trak")) >= 0) {
+                try {
+                    if (mp4.readTrack(moov, trak)) {
+                        return mp4;
+                    }
+                } catch (IndexOutOfBoundsException e) {
+                    // A table runs past the end of moov; try the next track.
+                }
+                trak += moov.getInt(trak);
+            }
+            return null;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getSamplesPerFrame() {
+        return SAMPLES_PER_FRAME;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Whether every access unit of the sample table lies inside the file.
+    public boolean isComplete() {
+        long fileSize = mFile.length();
+        for (int i = 0; i < mNumFrames; i++) {
+            if (mFrameOffsets[i] < 0 || mFrameOffsets[i] + mFrameSizes[i] > fileSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Writes the access units covering [startTime, endTime) seconds to outputFile.
+    public void write(File outputFile, double startTime, double endTime) throws IOException {
+        // The tolerance keeps times computed from frame boundaries on those boundaries.
+        int startFrame = (int) Math.floor(startTime * mSampleRate / SAMPLES_PER_FRAME + 1e-6);
+        int endFrame = (int) Math.ceil(endTime * mSampleRate / SAMPLES_PER_FRAME - 1e-6);
+        startFrame = Math.max(0, Math.min(startFrame, mNumFrames - 1));
+        endFrame = Math.max(startFrame + 1, Math.min(endFrame, mNumFrames));
+
+        int numFrames = endFrame - startFrame;
+        int[] frameSizes = new int[1 + numFrames];
+        frameSizes[0] = 2;
+        long totSize = 0;
+        for (int i = 0; i < numFrames; i++) {
+            frameSizes[1 + i] = mFrameSizes[startFrame + i];
+            totSize += frameSizes[1 + i];
+        }
+        int bitrate = (int) (totSize * 8 * mSampleRate / ((long) numFrames * SAMPLES_PER_FRAME));
+        byte[] header = MP4Header.getMP4Header(mSampleRate, mChannels, frameSizes, bitrate);
+        if (header == null) {
+            throw new IOException("Cannot describe " + numFrames + " frames of " + mFile);
+        }
+
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+        FileOutputStream output = new FileOutputStream(outputFile);
+        try {
+            FileChannel out = output.getChannel();
+            ByteBuffer prefix = ByteBuffer.allocate(header.length + 2);
+            prefix.put(header);
+            prefix.put(getCodecConfig());
+            prefix.flip();
+            while (prefix.hasRemaining()) {
+                out.write(prefix);
+            }
+            // Access units that sit next to each other in the source go out in one transfer.
+            FileChannel in = input.getChannel();
+            int frame = startFrame;
+            while (frame < endFrame) {
+                long start = mFrameOffsets[frame];
+                long end = start + mFrameSizes[frame];
+                frame++;
+                while (frame < endFrame && mFrameOffsets[frame] == end) {
+                    end += mFrameSizes[frame];
+                    frame++;
+                }
+                transferFully(in, start, end - start, out);
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+    // The AudioSpecificConfig MP4Header puts in the esds atom, which is also the one open()
+    // accepted from the source.
+    private byte[] getCodecConfig() {
+        int index = 0;
+        while (SAMPLING_FREQUENCIES[index] != mSampleRate) {
+            index++;
+        }
+        return new byte[]{
+                (byte) (0x10 | ((index >> 1) & 0x07)),
+                (byte) (((index & 1) << 7) | ((mChannels & 0x0F) << 3))
+        };
+    }
+
+    private void transferFully(FileChannel in, long position, long count, FileChannel out)
+            throws IOException {
+        long end = position + count;
+        while (position < end) {
+            long transferred = in.transferTo(position, end - position, out);
+            if (transferred <= 0) {
+                throw new IOException("Unexpected end of " + mFile);
+            }
+            position += transferred;
+        }
+    }
+
+    private boolean readTrack(ByteBuffer moov, int trak) {
+        int mdia = findPath(moov, trak, "mdia");
+        int hdlr = findPath(moov, mdia, "hdlr");
+        int mdhd = findPath(moov, mdia, "mdhd");
+        int stbl = findPath(moov, mdia, "minf.stbl");
+        if (hdlr < 0 || mdhd < 0 || stbl < 0 || !isType(moov, hdlr + 16, "soun")) {
+            return false;
+        }
+        int timescale = moov.getInt(mdhd + ((moov.get(mdhd + 8) == 1) ? 28 : 20));
+        if (!readSampleDescription(moov, findPath(moov, stbl, "stsd"))
+                || timescale != mSampleRate) {
+            return false;
+        }
+        return readSampleTable(moov, stbl);
+    }
+
+    // Accepts a single mp4a entry whose esds holds a 2 byte AAC LC AudioSpecificConfig.
+    private boolean readSampleDescription(ByteBuffer moov, int stsd) {
+        if (stsd < 0 || moov.getInt(stsd + 12) != 1) {
+            return false;
+        }
+        int mp4a = stsd + 16;
+        if (!isType(moov, mp4a + 4, "mp4a") || moov.getShort(mp4a + 16) != 0) {
+            return false;
+        }
+        int esds = findAtom(moov, mp4a + 36, mp4a + moov.getInt(mp4a), "esds");
+        if (esds < 0) {
+            return false;
+        }
+        int end = esds + moov.getInt(esds);
+        int pos = esds + 12;
+        pos = skipDescriptorHeader(moov, pos, end, 0x03);
+        if (pos < 0) {
+            return false;
+        }
+        int esFlags = moov.get(pos + 2) & 0xFF;
+        pos += 3;
+        pos += ((esFlags & 0x80) != 0) ? 2 : 0;
+        pos += ((esFlags & 0x40) != 0) ? 1 + (moov.get(pos) & 0xFF) : 0;
+        pos += ((esFlags & 0x20) != 0) ? 2 : 0;
+        pos = skipDescriptorHeader(moov, pos, end, 0x04);
+        if (pos < 0 || moov.get(pos) != 0x40) {
+            return false;
+        }
+        pos = skipDescriptorHeader(moov, pos + 13, end, 0x05);
+        if (pos < 0 || moov.get(pos - 1) != 2 || pos + 2 > end) {
+            return false;
+        }
+        int config = moov.getShort(pos) & 0xFFFF;
+        int objectType = config >> 11;
+        int index = (config >> 7) & 0x0F;
+        int channels = (config >> 3) & 0x0F;
+        if (objectType != 2 || index >= SAMPLING_FREQUENCIES.length
+                || channels < 1 || channels > 2 || (config & 0x07) != 0) {
+            return false;
+        }
+        mSampleRate = SAMPLING_FREQUENCIES[index];
+        mChannels = channels;
+        return true;
+    }
+
+    // Position of the payload of the descriptor with the given tag at pos, or -1.
+    private static int skipDescriptorHeader(ByteBuffer bytes, int pos, int end, int tag) {
+        if (pos < 0 || pos >= end || bytes.get(pos) != tag) {
+            return -1;
+        }
+        pos++;
+        for (int i = 0; i < 4 && pos < end; i++) {
+            if ((bytes.get(pos++) & 0x80) == 0) {
+                return pos;
+            }
+        }
+        return -1;
+    }
+
+    // Expands stts, stsc, stsz and stco (or co64) into one offset and size per access unit.
+    // Leading samples without a duration are codec config and are left out.
+    private boolean readSampleTable(ByteBuffer moov, int stbl) {
+        int stts = findPath(moov, stbl, "stts");
+        int stsc = findPath(moov, stbl, "stsc");
+        int stsz = findPath(moov, stbl, "stsz");
+        int stco = findPath(moov, stbl, "stco");
+        int co64 = findPath(moov, stbl, "co64");
+        if (stts < 0 || stsc < 0 || stsz < 0 || (stco < 0 && co64 < 0)) {
+            return false;
+        }
+        int numSamples = moov.getInt(stsz + 16);
+        int uniformSize = moov.getInt(stsz + 12);
+        if (numSamples < 1 || (uniformSize == 0 && 20 + 4L * numSamples > moov.getInt(stsz))) {
+            return false;
+        }
+
+        int skipped = 0;
+        int sample = 0;
+        int numEntries = moov.getInt(stts + 12);
+        for (int entry = 0; entry < numEntries; entry++) {
+            int count = moov.getInt(stts + 16 + 8 * entry);
+            int delta = moov.getInt(stts + 20 + 8 * entry);
+            if (delta == 0 && sample == skipped) {
+                skipped += count;
+            } else if (delta != SAMPLES_PER_FRAME
+                    && !(delta < SAMPLES_PER_FRAME && count == 1 && sample + 1 == numSamples)) {
+                return false;
+            }
+            sample += count;
+        }
+        if (sample != numSamples || skipped >= numSamples) {
+            return false;
+        }
+
+        long[] offsets = new long[numSamples];
+        int[] sizes = new int[numSamples];
+        boolean wide = stco < 0;
+        int chunks = wide ? co64 : stco;
+        int numChunks = moov.getInt(chunks + 12);
+        int numRuns = moov.getInt(stsc + 12);
+        sample = 0;
+        for (int run = 0; run < numRuns && sample < numSamples; run++) {
+            int firstChunk = moov.getInt(stsc + 16 + 12 * run) - 1;
+            int lastChunk = (run + 1 < numRuns) ?
+                    moov.getInt(stsc + 16 + 12 * (run + 1)) - 1 : numChunks;
+            int samplesPerChunk = moov.getInt(stsc + 20 + 12 * run);
+            if (firstChunk < 0 || lastChunk > numChunks) {
+                return false;
+            }
+            for (int chunk = firstChunk; chunk < lastChunk && sample < numSamples; chunk++) {
+                long offset = wide ?
+                        moov.getLong(chunks + 16 + 8 * chunk) :
+                        moov.getInt(chunks + 16 + 4 * chunk) & 0xFFFFFFFFL;
+                for (int i = 0; i < samplesPerChunk && sample < numSamples; i++) {
+                    int size = (uniformSize != 0) ?
+                            uniformSize : moov.getInt(stsz + 20 + 4 * sample);
+                    offsets[sample] = offset;
+                    sizes[sample] = size;
+                    offset += size;
+                    sample++;
+                }
+            }
+        }
+        if (sample != numSamples) {
+            return false;
+        }
+
+        mNumFrames = numSamples - skipped;
+        mFrameOffsets = new long[mNumFrames];
+        mFrameSizes = new int[mNumFrames];
+        System.arraycopy(offsets, skipped, mFrameOffsets, 0, mNumFrames);
+        System.arraycopy(sizes, skipped, mFrameSizes, 0, mNumFrames);
+        return true;
+    }
+
+    // Reads the top level moov atom, wherever it is in the file.
+    private static ByteBuffer readMoov(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(16);
+        while (position + 8 <= fileSize) {
+            header.clear();
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xFFFFFFFFL;
+            int headerSize = 8;
+            if (size == 1) {
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize || position + size > fileSize) {
+                return null;
+            }
+            if (isType(header, 4, "moov")) {
+                if (headerSize != 8 || size > MAX_MOOV_SIZE) {
+                    return null;
+                }
+                ByteBuffer moov = ByteBuffer.allocate((int) size);
+                readFully(channel, moov, position);
+                moov.flip();
+                return moov;
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position)
+            throws IOException {
+        long fileSize = channel.size();
+        while (dst.hasRemaining() && position < fileSize) {
+            int count = channel.read(dst, position);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+    }
+
+    // Position of the atom at path (e.g. "minf.stbl") below the atom at parent, or -1.
+    private static int findPath(ByteBuffer bytes, int parent, String path) {
+        for (String type : path.split("\\.")) {
+            if (parent < 0) {
+                return -1;
+            }
+            parent = findAtom(bytes, parent + 8, parent + bytes.getInt(parent), type);
+        }
+        return parent;
+    }
+
+    // Position of the first atom of the given type among the atoms in [start, end), or -1.
+    private static int findAtom(ByteBuffer bytes, int start, int end, String type) {
+        end = Math.min(end, bytes.limit());
+        int pos = start;
+        while (pos + 8 <= end) {
+            int size = bytes.getInt(pos);
+            if (size < 8 || pos + size > end) {
+                return -1;
+            }
+            if (isType(bytes, pos + 4, type)) {
+                return pos;
+            }
+            pos += size;
+        }
+        return -1;
+    }
+
+    private static boolean isType(ByteBuffer bytes, int pos, String type) {
+        if (pos < 0 || pos + type.length() > bytes.limit()) {
+            return false;
+        }
+        for (int i = 0; i < type.length(); i++) {
+            if (bytes.get(pos + i) != type.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
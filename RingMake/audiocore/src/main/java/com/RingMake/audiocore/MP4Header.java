@@ -1,5 +1,5 @@
 
-package com.RingMake.Ringdroid.soundfile;
+package com.RingMake.audiocore;
 
 class Atom {
     private int mSize;
@@ -8,6 +8,7 @@ class Atom {
     private Atom[] mChildren;
     private byte mVersion;
     private int mFlags;
+    private int mReservedSize;  // Payload counted in mSize but written by someone else.
 
     public Atom(String type) {
         mSize = 8;
@@ -39,13 +40,51 @@ class Atom {
                 size += child.getSize();
             }
         }
-        mSize = size;
+        mSize = size + mReservedSize;
     }
 
     public int getSize() {
         return mSize;
     }
 
+    // Makes the atom size account for size more bytes after its data without holding them;
+    // getBytes() leaves them out and the caller writes them in place.
+    public void setReservedSize(int size) {
+        mReservedSize = size;
+        setSize();
+    }
+
+    // Reserved bytes of this atom and all its descendants.
+    public int getReservedSize() {
+        int size = mReservedSize;
+        if (mChildren != null) {
+            for (Atom child : mChildren) {
+                size += child.getReservedSize();
+            }
+        }
+        return size;
+    }
+
+    // Offset of the descendant at path (e.g. "trak.mdia") within getBytes(), or -1.
+    public int getOffset(String type) {
+        if (mChildren == null) {
+            return -1;
+        }
+        String[] types = type.split("\\.", 2);
+        int offset = (mVersion >= 0) ? 12 : 8;
+        for (Atom child : mChildren) {
+            if (child.getTypeStr().equals(types[0])) {
+                if (types.length == 1) {
+                    return offset;
+                }
+                int childOffset = child.getOffset(types[1]);
+                return (childOffset < 0) ? -1 : offset + childOffset;
+            }
+            offset += child.getSize() - child.getReservedSize();
+        }
+        return -1;
+    }
+
     private int getTypeInt(String type_str) {
         int type = 0;
         type |= (byte) (type_str.charAt(0)) << 24;
@@ -118,7 +157,7 @@ class Atom {
     }
 
     public byte[] getBytes() {
-        byte[] atom_bytes = new byte[mSize];
+        byte[] atom_bytes = new byte[mSize - getReservedSize()];
         int offset = 0;
 
         atom_bytes[offset++] = (byte) ((mSize >> 24) & 0xFF);
@@ -171,6 +210,8 @@ class Atom {
 
 public class MP4Header {
     private int[] mFrameSize;
+    private int mNumFrames;
+    private int mReservedFrames;
     private int mMaxFrameSize;
     private int mTotSize;
     private int mBitrate;
@@ -178,6 +219,8 @@ public class MP4Header {
     private byte[] mDurationMS;
     private byte[] mNumSamples;
     private byte[] mHeader;
+    private int mFrameSizesOffset;
+    private int mDataOffset;
     private int mSampleRate;
     private int mChannels;
 
@@ -185,10 +228,9 @@ public class MP4Header {
         if (frame_size == null || frame_size.length < 2 || frame_size[0] != 2) {
             return;
         }
-        mSampleRate = sampleRate;
-        mChannels = numChannels;
         mFrameSize = frame_size;
-        mBitrate = bitrate;
+        mNumFrames = frame_size.length;
+        mReservedFrames = mNumFrames;
         mMaxFrameSize = mFrameSize[0];
         mTotSize = mFrameSize[0];
         for (int i = 1; i < mFrameSize.length; i++) {
@@ -197,6 +239,30 @@ public class MP4Header {
             }
             mTotSize += mFrameSize[i];
         }
+        init(sampleRate, numChannels, bitrate);
+    }
+
+    // Header for a file whose frames are streamed to disk: the stsz frame size table is left
+    // out of getMP4Header() (see getFrameSizesOffset()), and a free atom pads the moov to the
+    // size it has with reservedFrames frames, so the payload offset does not depend on how
+    // many frames the encoder ends up producing. numFrames counts the codec config as well.
+    public MP4Header(int sampleRate, int numChannels, int numFrames, int reservedFrames,
+                     int maxFrameSize, int totSize, int bitrate) {
+        if (numFrames < 2 || reservedFrames < numFrames) {
+            return;
+        }
+        mFrameSize = null;
+        mNumFrames = numFrames;
+        mReservedFrames = reservedFrames;
+        mMaxFrameSize = maxFrameSize;
+        mTotSize = totSize;
+        init(sampleRate, numChannels, bitrate);
+    }
+
+    private void init(int sampleRate, int numChannels, int bitrate) {
+        mSampleRate = sampleRate;
+        mChannels = numChannels;
+        mBitrate = bitrate;
         long time = System.currentTimeMillis() / 1000;
         time += (66 * 365 + 16) * 24 * 60 * 60;
         mTime = new byte[4];
@@ -204,7 +270,7 @@ public class MP4Header {
         mTime[1] = (byte) ((time >> 16) & 0xFF);
         mTime[2] = (byte) ((time >> 8) & 0xFF);
         mTime[3] = (byte) (time & 0xFF);
-        int numSamples = 1024 * (frame_size.length - 1);
+        int numSamples = 1024 * (mNumFrames - 1);
         int durationMS = (numSamples * 1000) / mSampleRate;
         if ((numSamples * 1000) % mSampleRate > 0) {
             durationMS++;
@@ -228,6 +294,18 @@ public class MP4Header {
         return mHeader;
     }
 
+    // Where the stsz table starts, both in getMP4Header() and in the file. Without a frame
+    // size table the file holds 4 * numFrames bytes of sizes there and the rest of the header
+    // follows them.
+    public int getFrameSizesOffset() {
+        return mFrameSizesOffset;
+    }
+
+    // Offset of the first frame in the file.
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
     public static byte[] getMP4Header(
             int sampleRate, int numChannels, int[] frame_size, int bitrate) {
         return new MP4Header(sampleRate, numChannels, frame_size, bitrate).mHeader;
@@ -267,6 +345,10 @@ public class MP4Header {
         }
         byte[] data = a_stco.getData();
         int chunk_offset = a_ftyp.getSize() + a_moov.getSize() + a_mdat.getSize();
+        mDataOffset = chunk_offset;
+        // The table follows the stsz atom header, version/flags, sample size and count.
+        mFrameSizesOffset =
+                a_ftyp.getSize() + a_moov.getOffset("trak.mdia.minf.stbl.stsz") + 8 + 4 + 8;
         int offset = data.length - 4;
         data[offset++] = (byte) ((chunk_offset >> 24) & 0xFF);
         data[offset++] = (byte) ((chunk_offset >> 16) & 0xFF);
@@ -274,7 +356,7 @@ public class MP4Header {
         data[offset++] = (byte) (chunk_offset & 0xFF);
 
 
-        byte[] header = new byte[chunk_offset];
+        byte[] header = new byte[chunk_offset - a_moov.getReservedSize()];
         offset = 0;
         for (Atom atom : new Atom[]{a_ftyp, a_moov, a_mdat}) {
             byte[] atom_bytes = atom.getBytes();
@@ -308,6 +390,15 @@ public class MP4Header {
         Atom atom = new Atom("moov");
         atom.addChild(getMVHDAtom());
         atom.addChild(getTRAKAtom());
+        if (mFrameSize == null) {
+            atom.addChild(getFREEAtom());
+        }
+        return atom;
+    }
+
+    private Atom getFREEAtom() {
+        Atom atom = new Atom("free");
+        atom.setData(new byte[4 * (mReservedFrames - mNumFrames)]);
         return atom;
     }
 
@@ -541,7 +632,7 @@ public class MP4Header {
 
     private Atom getSTTSAtom() {
         Atom atom = new Atom("stts", (byte) 0, 0);
-        int numAudioFrames = mFrameSize.length - 1;
+        int numAudioFrames = mNumFrames - 1;
         atom.setData(new byte[]{
                 0, 0, 0, 0x02,
                 0, 0, 0, 0x01,
@@ -555,7 +646,7 @@ public class MP4Header {
 
     private Atom getSTSCAtom() {
         Atom atom = new Atom("stsc", (byte) 0, 0);
-        int numFrames = mFrameSize.length;
+        int numFrames = mNumFrames;
         atom.setData(new byte[]{
                 0, 0, 0, 0x01,
                 0, 0, 0, 0x01,
@@ -568,8 +659,11 @@ public class MP4Header {
 
     private Atom getSTSZAtom() {
         Atom atom = new Atom("stsz", (byte) 0, 0);
-        int numFrames = mFrameSize.length;
-        byte[] data = new byte[8 + 4 * numFrames];
+        int numFrames = mNumFrames;
+        if (mFrameSize == null) {
+            atom.setReservedSize(4 * numFrames);
+        }
+        byte[] data = new byte[8 + ((mFrameSize == null) ? 0 : 4 * numFrames)];
         int offset = 0;
         data[offset++] = 0;
         data[offset++] = 0;
@@ -579,7 +673,8 @@ public class MP4Header {
         data[offset++] = (byte) ((numFrames >> 16) & 0xFF);
         data[offset++] = (byte) ((numFrames >> 8) & 0xFF);
         data[offset++] = (byte) (numFrames & 0xFF);
-        for (int size : mFrameSize) {
+        for (int i = 0; mFrameSize != null && i < numFrames; i++) {
+            int size = mFrameSize[i];
             data[offset++] = (byte) ((size >> 24) & 0xFF);
             data[offset++] = (byte) ((size >> 16) & 0xFF);
             data[offset++] = (byte) ((size >> 8) & 0xFF);
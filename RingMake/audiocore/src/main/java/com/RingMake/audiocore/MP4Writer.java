@@ -0,0 +1,102 @@
+package com.RingMake.audiocore;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Writes an AAC .m4a file while the frames come out of the encoder. Space for the header is
+// reserved up front for maxFrames frames, frames go straight to the mdat payload, their sizes
+// go to the stsz table in place, and finish() fills in the rest of the header. Nothing grows
+// with the length of the clip.
+public class MP4Writer {
+    private static final int SIZES_BATCH = 1024;
+
+    private FileChannel mChannel;
+    private int mSampleRate;
+    private int mChannels;
+    private int mBitrate;
+    private int mMaxFrames;
+    private int mFrameSizesOffset;
+    private int mDataOffset;
+    private long mDataPosition;
+    private ByteBuffer mSizes;
+    private int mNumFrames;
+    private int mNumFlushedSizes;
+    private int mMaxFrameSize;
+
+    public MP4Writer(FileChannel channel, int sampleRate, int numChannels, int bitrate,
+                     int maxFrames) throws IOException {
+        MP4Header layout =
+                new MP4Header(sampleRate, numChannels, maxFrames, maxFrames, 0, 0, bitrate);
+        if (layout.getMP4Header() == null) {
+            throw new IllegalArgumentException("Too few frames: " + maxFrames);
+        }
+        mChannel = channel;
+        mSampleRate = sampleRate;
+        mChannels = numChannels;
+        mBitrate = bitrate;
+        mMaxFrames = maxFrames;
+        mFrameSizesOffset = layout.getFrameSizesOffset();
+        mDataOffset = layout.getDataOffset();
+        mDataPosition = mDataOffset;
+        mSizes = ByteBuffer.allocate(4 * SIZES_BATCH);
+        mNumFrames = 0;
+        mNumFlushedSizes = 0;
+        mMaxFrameSize = 0;
+        mChannel.truncate(0);
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Appends the remaining bytes of frame, which is consumed. The first frame must be the
+    // 2 byte codec config. Returns false, and writes nothing, once maxFrames frames are in.
+    public boolean writeFrame(ByteBuffer frame) throws IOException {
+        if (mNumFrames == mMaxFrames) {
+            return false;
+        }
+        int size = frame.remaining();
+        while (frame.hasRemaining()) {
+            mDataPosition += mChannel.write(frame, mDataPosition);
+        }
+        if (size > mMaxFrameSize) {
+            mMaxFrameSize = size;
+        }
+        mSizes.putInt(size);
+        mNumFrames++;
+        if (!mSizes.hasRemaining()) {
+            flushSizes();
+        }
+        return true;
+    }
+
+    public void finish() throws IOException {
+        flushSizes();
+        int totSize = (int) (mDataPosition - mDataOffset);
+        MP4Header header = new MP4Header(
+                mSampleRate, mChannels, mNumFrames, mMaxFrames, mMaxFrameSize, totSize, mBitrate);
+        byte[] bytes = header.getMP4Header();
+        if (bytes == null) {
+            throw new IOException("Not enough frames to write an MP4 file: " + mNumFrames);
+        }
+        int split = header.getFrameSizesOffset();
+        writeFully(ByteBuffer.wrap(bytes, 0, split), 0);
+        writeFully(ByteBuffer.wrap(bytes, split, bytes.length - split),
+                split + 4L * mNumFrames);
+        mChannel.truncate(mDataPosition);
+    }
+
+    private void flushSizes() throws IOException {
+        mSizes.flip();
+        writeFully(mSizes, mFrameSizesOffset + 4L * mNumFlushedSizes);
+        mNumFlushedSizes = mNumFrames;
+        mSizes.clear();
+    }
+
+    private void writeFully(ByteBuffer src, long position) throws IOException {
+        while (src.hasRemaining()) {
+            position += mChannel.write(src, position);
+        }
+    }
+}
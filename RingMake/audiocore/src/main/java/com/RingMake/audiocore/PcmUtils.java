@@ -0,0 +1,15 @@
+package com.RingMake.audiocore;
+
+public class PcmUtils {
+    private PcmUtils() {
+    }
+
+    // Reads up to length samples and pads the rest of dst[0, length) with silence.
+    public static void readSamples(SampleBuffer samples, short[] dst, int length) {
+        int available = Math.min(samples.remaining(), length);
+        samples.get(dst, 0, available);
+        for (int i = available; i < length; i++) {
+            dst[i] = 0;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.RingMake.audiocore;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+// The passes behind PeakPyramid.fromFrameGains. Each pass works on a frame range and reads
+// neighbouring gains directly, so chunk borders need no stitching; chunk results are merged
+// with max and integer sums, which gives the same answer whatever order the chunks finish in.
+// append() serves ProgressivePeaks and grows the same state batch by batch.
+class PeakNormalizer {
+    static final int CHUNK_FRAMES = 16384;
+
+    private int[] mFrameGains;
+    private int mNumFrames;
+    private double[] mSmoothedGains;
+    private byte[] mHeights;
+    private double mScaleFactor;
+    private double mMinGain;
+    private double mRange;
+
+    // State of append(): the histogram of the scaled gains of every frame so far, the largest
+    // smoothed gain and the frame count when the range was last recomputed.
+    private int[] mGainHist;
+    private double mMaxGain;
+    private int mNormalizedFrames;
+
+    PeakNormalizer(int[] frameGains, int numFrames) {
+        mFrameGains = frameGains;
+        mNumFrames = numFrames;
+        mSmoothedGains = new double[numFrames];
+        mHeights = new byte[numFrames];
+    }
+
+    // Starts empty, for append().
+    PeakNormalizer() {
+        this(new int[0], 0);
+        mGainHist = new int[257];
+    }
+
+    // Runs every pass on the calling thread when pool is null.
+    byte[] normalize(ForkJoinPool pool) {
+        double maxGain = Math.max(1.0, pool == null ?
+                smooth(0, mNumFrames) : pool.invoke(new SmoothTask(this, 0, mNumFrames)));
+        mScaleFactor = 1.0;
+        if (maxGain > 255.0) {
+            mScaleFactor = 255 / maxGain;
+        }
+
+        int gainHist[] = new int[257];
+        if (pool == null) {
+            histogram(0, mNumFrames, gainHist);
+        } else {
+            gainHist = pool.invoke(new HistogramTask(this, 0, mNumFrames));
+        }
+        setRange(gainHist);
+        if (pool == null) {
+            heights(0, mNumFrames);
+        } else {
+            pool.invoke(new HeightsTask(this, 0, mNumFrames));
+        }
+        return mHeights;
+    }
+
+    byte[] getHeights() {
+        return mHeights;
+    }
+
+    // Adds frames [getNumFrames(), numFrames) of frameGains, which may be a new array as long
+    // as it holds the same earlier gains. The new frames, and the last old one which only now
+    // has a right neighbour, get heights in the range used so far. Once the frame count has
+    // doubled since the range was last recomputed, it is recomputed from a fresh histogram,
+    // and every frame is normalized again if it moved. That keeps the total work linear.
+    // Returns the first frame whose height changed.
+    int append(int[] frameGains, int numFrames) {
+        int oldNumFrames = mNumFrames;
+        if (numFrames > mHeights.length) {
+            int capacity = Math.max(numFrames, 2 * mHeights.length);
+            mSmoothedGains = Arrays.copyOf(mSmoothedGains, capacity);
+            mHeights = Arrays.copyOf(mHeights, capacity);
+        }
+        // Files of one or two frames are not smoothed, so a third frame changes all of them.
+        int from = (oldNumFrames <= 2) ? 0 : oldNumFrames - 1;
+        for (int i = from; i < oldNumFrames; i++) {
+            mGainHist[scaledGain(i)]--;
+        }
+        mFrameGains = frameGains;
+        mNumFrames = numFrames;
+        mMaxGain = Math.max(mMaxGain, smooth(from, numFrames));
+
+        if (numFrames < 2 * mNormalizedFrames) {
+            histogram(from, numFrames, mGainHist);
+            heights(from, numFrames);
+            return from;
+        }
+        double oldScaleFactor = mScaleFactor;
+        double oldMinGain = mMinGain;
+        double oldRange = mRange;
+        mScaleFactor = (mMaxGain > 255.0) ? 255 / mMaxGain : 1.0;
+        Arrays.fill(mGainHist, 0);
+        histogram(0, numFrames, mGainHist);
+        setRange(mGainHist);
+        boolean unchanged = mNormalizedFrames > 0 && mScaleFactor == oldScaleFactor
+                && mMinGain == oldMinGain && mRange == oldRange;
+        mNormalizedFrames = numFrames;
+        if (unchanged) {
+            heights(from, numFrames);
+            return from;
+        }
+        heights(0, numFrames);
+        return 0;
+    }
+
+    private int scaledGain(int frame) {
+        int smoothedGain = (int) (mSmoothedGains[frame] * mScaleFactor);
+        if (smoothedGain < 0)
+            smoothedGain = 0;
+        if (smoothedGain > 255)
+            smoothedGain = 255;
+        return smoothedGain;
+    }
+
+    // Clips the quietest 5% and the loudest 1% of the frames counted in gainHist.
+    private void setRange(int[] gainHist) {
+        double maxGain = gainHist[256];
+
+        double minGain = 0;
+        int sum = 0;
+        while (minGain < 255 && sum < mNumFrames / 20) {
+            sum += gainHist[(int) minGain];
+            minGain++;
+        }
+
+        sum = 0;
+        while (maxGain > 2 && sum < mNumFrames / 100) {
+            sum += gainHist[(int) maxGain];
+            maxGain--;
+        }
+
+        mMinGain = minGain;
+        mRange = maxGain - minGain;
+    }
+
+    // Smooths the gains of frames [from, to) over three frames and returns the largest result.
+    private double smooth(int from, int to) {
+        int[] frameGains = mFrameGains;
+        int numFrames = mNumFrames;
+        double max = 0;
+        for (int i = from; i < to; i++) {
+            double smoothed;
+            if (numFrames <= 2) {
+                smoothed = frameGains[i];
+            } else if (i == 0) {
+                smoothed = (frameGains[0] / 2.0) + (frameGains[1] / 2.0);
+            } else if (i == numFrames - 1) {
+                smoothed = (frameGains[i - 1] / 2.0) + (frameGains[i] / 2.0);
+            } else {
+                smoothed = (frameGains[i - 1] / 3.0) + (frameGains[i] / 3.0) +
+                        (frameGains[i + 1] / 3.0);
+            }
+            mSmoothedGains[i] = smoothed;
+            if (smoothed > max) {
+                max = smoothed;
+            }
+        }
+        return max;
+    }
+
+    // Counts the scaled gains of frames [from, to) into gainHist[0-255] and keeps their
+    // maximum in gainHist[256].
+    private void histogram(int from, int to, int[] gainHist) {
+        int max = gainHist[256];
+        for (int i = from; i < to; i++) {
+            int smoothedGain = scaledGain(i);
+
+            if (smoothedGain > max)
+                max = smoothedGain;
+
+            gainHist[smoothedGain]++;
+        }
+        gainHist[256] = max;
+    }
+
+    private void heights(int from, int to) {
+        for (int i = from; i < to; i++) {
+            double value = (mSmoothedGains[i] * mScaleFactor - mMinGain) / mRange;
+            if (value < 0.0)
+                value = 0.0;
+            if (value > 1.0)
+                value = 1.0;
+            mHeights[i] = (byte) (int) (value * value * 255 + 0.5);
+        }
+    }
+
+    private static class SmoothTask extends RecursiveTask<Double> {
+        private static final long serialVersionUID = 1L;
+
+        private final PeakNormalizer mNormalizer;
+        private final int mFrom;
+        private final int mTo;
+
+        SmoothTask(PeakNormalizer normalizer, int from, int to) {
+            mNormalizer = normalizer;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected Double compute() {
+            if (mTo - mFrom <= CHUNK_FRAMES) {
+                return mNormalizer.smooth(mFrom, mTo);
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            SmoothTask left = new SmoothTask(mNormalizer, mFrom, mid);
+            left.fork();
+            double right = new SmoothTask(mNormalizer, mid, mTo).compute();
+            return Math.max(left.join(), right);
+        }
+    }
+
+    private static class HistogramTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final PeakNormalizer mNormalizer;
+        private final int mFrom;
+        private final int mTo;
+
+        HistogramTask(PeakNormalizer normalizer, int from, int to) {
+            mNormalizer = normalizer;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (mTo - mFrom <= CHUNK_FRAMES) {
+                int[] gainHist = new int[257];
+                mNormalizer.histogram(mFrom, mTo, gainHist);
+                return gainHist;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            HistogramTask left = new HistogramTask(mNormalizer, mFrom, mid);
+            left.fork();
+            int[] gainHist = new HistogramTask(mNormalizer, mid, mTo).compute();
+            int[] leftHist = left.join();
+            for (int i = 0; i < 256; i++) {
+                gainHist[i] += leftHist[i];
+            }
+            gainHist[256] = Math.max(gainHist[256], leftHist[256]);
+            return gainHist;
+        }
+    }
+
+    private static class HeightsTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final PeakNormalizer mNormalizer;
+        private final int mFrom;
+        private final int mTo;
+
+        HeightsTask(PeakNormalizer normalizer, int from, int to) {
+            mNormalizer = normalizer;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= CHUNK_FRAMES) {
+                mNormalizer.heights(mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new HeightsTask(mNormalizer, mFrom, mid),
+                    new HeightsTask(mNormalizer, mid, mTo));
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.RingMake.audiocore;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Max-envelope pyramid over per-frame waveform heights (0-255, one unsigned byte each).
+// Level 0 holds one value per frame and every level above halves the previous one, so any
+// frame range can be answered from at most three nodes whatever the zoom factor is.
+public class PeakPyramid {
+    private byte[][] mLevels;
+    private int mNumFrames;
+
+    // Empty, for ProgressivePeaks to grow with update().
+    PeakPyramid() {
+        mLevels = new byte[][] {new byte[0]};
+    }
+
+    public PeakPyramid(byte[] heights, int numFrames) {
+        this(heights, numFrames, null);
+    }
+
+    // Builds the levels above level 0 with pool when it is not null.
+    public PeakPyramid(byte[] heights, int numFrames, ForkJoinPool pool) {
+        mNumFrames = numFrames;
+        int numLevels = 1;
+        for (int len = numFrames; len > 1; len = (len + 1) / 2) {
+            numLevels++;
+        }
+        mLevels = new byte[numLevels][];
+        mLevels[0] = heights;
+        int len = numFrames;
+        for (int j = 1; j < numLevels; j++) {
+            byte[] prev = mLevels[j - 1];
+            int prevLen = len;
+            len = (len + 1) / 2;
+            byte[] level = new byte[len];
+            if (pool != null && len > PeakNormalizer.CHUNK_FRAMES) {
+                pool.invoke(new LevelTask(prev, prevLen, level, 0, len));
+            } else {
+                buildLevel(prev, prevLen, level, 0, len);
+            }
+            mLevels[j] = level;
+        }
+    }
+
+    // Smooths the frame gains over three frames and maps them to 0-255 heights, clipping the
+    // quietest 5% and loudest 1% so one loud spike does not flatten the rest of the waveform.
+    public static PeakPyramid fromFrameGains(int[] frameGains, int numFrames) {
+        return fromFrameGains(frameGains, numFrames, null);
+    }
+
+    // Same as above, split by frame range across pool. The result does not depend on the
+    // number of threads.
+    public static PeakPyramid fromFrameGains(int[] frameGains, int numFrames, ForkJoinPool pool) {
+        if (numFrames <= PeakNormalizer.CHUNK_FRAMES) {
+            pool = null;
+        }
+        byte[] heights = new PeakNormalizer(frameGains, numFrames).normalize(pool);
+        return new PeakPyramid(heights, numFrames, pool);
+    }
+
+    // Takes heights as level 0 and rebuilds the nodes above frames [from, numFrames). Frames
+    // before from must be unchanged since the last call, and numFrames can only grow. The
+    // levels keep spare room, so growing one frame at a time stays linear.
+    void update(byte[] heights, int from, int numFrames) {
+        int numLevels = 1;
+        for (int len = numFrames; len > 1; len = (len + 1) / 2) {
+            numLevels++;
+        }
+        if (numLevels > mLevels.length) {
+            mLevels = Arrays.copyOf(mLevels, numLevels);
+        }
+        mLevels[0] = heights;
+        int len = numFrames;
+        for (int j = 1; j < numLevels; j++) {
+            int prevLen = len;
+            len = (len + 1) / 2;
+            byte[] level = mLevels[j];
+            int start = from >> j;
+            if (level == null) {
+                level = new byte[len];
+                start = 0;
+            } else if (level.length < len) {
+                level = Arrays.copyOf(level, Math.max(len, 2 * level.length));
+            }
+            buildLevel(mLevels[j - 1], prevLen, level, start, len);
+            mLevels[j] = level;
+        }
+        mNumFrames = numFrames;
+    }
+
+    private static void buildLevel(byte[] prev, int prevLen, byte[] level, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int a = prev[2 * i] & 0xFF;
+            int b = (2 * i + 1 < prevLen) ? prev[2 * i + 1] & 0xFF : 0;
+            level[i] = (byte) (a > b ? a : b);
+        }
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    public int get(int frame) {
+        return mLevels[0][frame] & 0xFF;
+    }
+
+    // Largest height over frames [from, to). Nodes at the chosen level are no wider than the
+    // range, so at most three of them are read and the result never spills more than one range
+    // width past either end.
+    public int getMax(int from, int to) {
+        if (from < 0) {
+            from = 0;
+        }
+        if (to > mNumFrames) {
+            to = mNumFrames;
+        }
+        if (to <= from) {
+            return 0;
+        }
+        int level = 31 - Integer.numberOfLeadingZeros(to - from);
+        if (level >= mLevels.length) {
+            level = mLevels.length - 1;
+        }
+        byte[] values = mLevels[level];
+        int max = 0;
+        for (int i = from >> level; i <= (to - 1) >> level; i++) {
+            int value = values[i] & 0xFF;
+            if (value > max) {
+                max = value;
+            }
+        }
+        return max;
+    }
+
+    private static class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] mPrev;
+        private final int mPrevLen;
+        private final byte[] mLevel;
+        private final int mFrom;
+        private final int mTo;
+
+        LevelTask(byte[] prev, int prevLen, byte[] level, int from, int to) {
+            mPrev = prev;
+            mPrevLen = prevLen;
+            mLevel = level;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= PeakNormalizer.CHUNK_FRAMES) {
+                buildLevel(mPrev, mPrevLen, mLevel, mFrom, mTo);
+                return;
+            }
+            int mid = (mFrom + mTo) >>> 1;
+            invokeAll(new LevelTask(mPrev, mPrevLen, mLevel, mFrom, mid),
+                    new LevelTask(mPrev, mPrevLen, mLevel, mid, mTo));
+        }
+    }
+}
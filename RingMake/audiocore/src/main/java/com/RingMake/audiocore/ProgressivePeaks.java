@@ -0,0 +1,25 @@
+package com.RingMake.audiocore;
+
+// The waveform of a file that is still decoding. Each update() maps only the newly decoded
+// frames to heights and adds them to the pyramid, so showing a long file as it loads costs
+// time in proportion to its length. The heights can differ slightly from the ones
+// PeakPyramid.fromFrameGains() gives for the finished file, which is meant to replace them.
+public class ProgressivePeaks {
+    private final PeakNormalizer mNormalizer = new PeakNormalizer();
+    private final PeakPyramid mPeaks = new PeakPyramid();
+
+    // Adds frames [getPeaks().getNumFrames(), numFrames) of frameGains and returns the first
+    // frame whose height changed.
+    public int update(int[] frameGains, int numFrames) {
+        if (numFrames <= mPeaks.getNumFrames()) {
+            return numFrames;
+        }
+        int from = mNormalizer.append(frameGains, numFrames);
+        mPeaks.update(mNormalizer.getHeights(), from, numFrames);
+        return from;
+    }
+
+    public PeakPyramid getPeaks() {
+        return mPeaks;
+    }
+}
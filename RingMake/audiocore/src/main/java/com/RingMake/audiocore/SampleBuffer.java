@@ -0,0 +1,78 @@
+package com.RingMake.audiocore;
+
+// Read-only cursor over decoded samples, modeled on ShortBuffer so callers can keep the usual
+// position()/get() idiom whatever the underlying storage is.
+public class SampleBuffer {
+    private SampleSource mSource;
+    private int mLimit;
+    private int mPosition;
+
+    public SampleBuffer(SampleSource source) {
+        mSource = source;
+        mLimit = source.size();
+        mPosition = 0;
+    }
+
+    public int position() {
+        return mPosition;
+    }
+
+    public SampleBuffer position(int newPosition) {
+        if (newPosition < 0 || newPosition > mLimit) {
+            throw new IllegalArgumentException();
+        }
+        mPosition = newPosition;
+        return this;
+    }
+
+    public int limit() {
+        return mLimit;
+    }
+
+    public int remaining() {
+        return mLimit - mPosition;
+    }
+
+    public boolean hasRemaining() {
+        return mPosition < mLimit;
+    }
+
+    public SampleBuffer rewind() {
+        mPosition = 0;
+        return this;
+    }
+
+    public short get() {
+        if (mPosition >= mLimit) {
+            throw new java.nio.BufferUnderflowException();
+        }
+        return mSource.get(mPosition++);
+    }
+
+    public short get(int index) {
+        if (index < 0 || index >= mLimit) {
+            throw new IndexOutOfBoundsException();
+        }
+        return mSource.get(index);
+    }
+
+    public SampleBuffer get(short[] dst) {
+        return get(dst, 0, dst.length);
+    }
+
+    public SampleBuffer get(short[] dst, int offset, int length) {
+        if (length > remaining()) {
+            throw new java.nio.BufferUnderflowException();
+        }
+        mSource.get(mPosition, dst, offset, length);
+        mPosition += length;
+        return this;
+    }
+
+    public SampleBuffer duplicate() {
+        SampleBuffer buffer = new SampleBuffer(mSource);
+        buffer.mLimit = mLimit;
+        buffer.mPosition = mPosition;
+        return buffer;
+    }
+}
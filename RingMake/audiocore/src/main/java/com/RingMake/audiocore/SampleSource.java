@@ -0,0 +1,18 @@
+package com.RingMake.audiocore;
+
+import java.nio.ByteBuffer;
+
+// Random access to interleaved 16 bit PCM, whatever holds it (a mapped file, heap chunks, or
+// a plain array in tests and benchmarks).
+public interface SampleSource {
+    // Number of 16 bit samples (all channels interleaved).
+    int size();
+
+    short get(int index);
+
+    void get(int index, short[] dst, int offset, int length);
+
+    // Little-endian bytes of samples [index, index + length) when they already sit in one
+    // ByteBuffer, or null when they can only be copied out with get().
+    ByteBuffer getBytes(int index, int length);
+}
@@ -0,0 +1,11 @@
+package com.RingMake.audiocore;
+
+// A SampleSource that owns its storage and must be released once it is no longer read.
+public abstract class SampleStore implements SampleSource {
+    public void release() {
+    }
+
+    public SampleBuffer asSampleBuffer() {
+        return new SampleBuffer(this);
+    }
+}
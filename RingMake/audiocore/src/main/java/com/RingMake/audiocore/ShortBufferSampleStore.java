@@ -0,0 +1,49 @@
+package com.RingMake.audiocore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+public class ShortBufferSampleStore extends SampleStore {
+    private ShortBuffer mSamples;
+    private ByteBuffer mBytes;
+
+    public ShortBufferSampleStore(ShortBuffer samples) {
+        mSamples = samples;
+        mBytes = null;
+    }
+
+    // Keeps the bytes as well, so getBytes() can hand out slices without copying.
+    public ShortBufferSampleStore(ByteBuffer bytes) {
+        mBytes = bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        mSamples = mBytes.asShortBuffer();
+    }
+
+    @Override
+    public int size() {
+        return mSamples.limit();
+    }
+
+    @Override
+    public short get(int index) {
+        return mSamples.get(index);
+    }
+
+    @Override
+    public void get(int index, short[] dst, int offset, int length) {
+        ShortBuffer samples = mSamples.duplicate();
+        samples.position(index);
+        samples.get(dst, offset, length);
+    }
+
+    @Override
+    public ByteBuffer getBytes(int index, int length) {
+        if (mBytes == null) {
+            return null;
+        }
+        ByteBuffer bytes = mBytes.duplicate();
+        bytes.position(mBytes.position() + index * 2);
+        bytes.limit(bytes.position() + length * 2);
+        return bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,154 @@
+package com.RingMake.audiocore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+// Location of the samples of a 16 bit PCM WAV file, used to cut it without reading the
+// samples into memory: the selected byte range is copied behind a fresh WAVHeader.
+public class WAVFile {
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+    // WAVHeader sizes the RIFF chunk for a 44 byte header; the rest of its array is padding.
+    private static final int HEADER_SIZE = 44;
+
+    private File mFile;
+    private int mSampleRate;
+    private int mChannels;
+    private long mDataOffset;
+    private int mNumFrames;
+    private boolean mComplete;
+
+    private WAVFile(File file) {
+        mFile = file;
+    }
+
+    // Returns null when file is not a 16 bit PCM WAV file.
+    public static WAVFile open(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            WAVFile wav = new WAVFile(file);
+            return wav.readChunks(randomAccessFile.getChannel()) ? wav : null;
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getNumFrames() {
+        return mNumFrames;
+    }
+
+    // Whether the file holds all the samples its data chunk announces.
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    // Writes the sample frames of [startTime, endTime) seconds to outputFile.
+    public void write(File outputFile, double startTime, double endTime) throws IOException {
+        int startFrame = (int) Math.round(startTime * mSampleRate);
+        int endFrame = (int) Math.round(endTime * mSampleRate);
+        startFrame = Math.max(0, Math.min(startFrame, mNumFrames));
+        endFrame = Math.max(startFrame, Math.min(endFrame, mNumFrames));
+        int blockAlign = 2 * mChannels;
+
+        byte[] header =
+                WAVHeader.getWAVHeader(mSampleRate, mChannels, endFrame - startFrame);
+        RandomAccessFile input = new RandomAccessFile(mFile, "r");
+        FileOutputStream output = new FileOutputStream(outputFile);
+        try {
+            FileChannel out = output.getChannel();
+            ByteBuffer headerBytes = ByteBuffer.wrap(header, 0, HEADER_SIZE);
+            while (headerBytes.hasRemaining()) {
+                out.write(headerBytes);
+            }
+            FileChannel in = input.getChannel();
+            long position = mDataOffset + (long) startFrame * blockAlign;
+            long end = mDataOffset + (long) endFrame * blockAlign;
+            while (position < end) {
+                long count = in.transferTo(position, end - position, out);
+                if (count <= 0) {
+                    throw new IOException("Unexpected end of " + mFile);
+                }
+                position += count;
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+    // Walks the RIFF chunks up to the data chunk, which must come after a PCM fmt chunk.
+    private boolean readChunks(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        ByteBuffer bytes = ByteBuffer.allocate(40).order(ByteOrder.LITTLE_ENDIAN);
+        if (read(channel, bytes, 0, 12) < 12 || bytes.getInt(0) != 0x46464952  // "RIFF"
+                || bytes.getInt(8) != 0x45564157) {  // "WAVE"
+            return false;
+        }
+        boolean haveFormat = false;
+        long position = 12;
+        while (position + 8 <= fileSize) {
+            read(channel, bytes, position, 8);
+            int id = bytes.getInt(0);
+            long size = bytes.getInt(4) & 0xFFFFFFFFL;
+            position += 8;
+            if (id == 0x20746d66) {  // "fmt "
+                if (size < 16 || read(channel, bytes, position, (int) Math.min(size, 40)) < 16) {
+                    return false;
+                }
+                int format = bytes.getShort(0) & 0xFFFF;
+                if (format == WAVE_FORMAT_EXTENSIBLE && size >= 26) {
+                    format = bytes.getShort(24) & 0xFFFF;  // First 2 bytes of the SubFormat GUID.
+                }
+                mChannels = bytes.getShort(2) & 0xFFFF;
+                mSampleRate = bytes.getInt(4);
+                int bitsPerSample = bytes.getShort(14) & 0xFFFF;
+                if (format != WAVE_FORMAT_PCM || bitsPerSample != 16 || mChannels < 1
+                        || mSampleRate <= 0 || (bytes.getShort(12) & 0xFFFF) != 2 * mChannels) {
+                    return false;
+                }
+                haveFormat = true;
+            } else if (id == 0x61746164) {  // "data"
+                if (!haveFormat) {
+                    return false;
+                }
+                // Streamed files can leave the size at 0 or 0xFFFFFFFF; trust the file length.
+                long available = fileSize - position;
+                mComplete = size <= available;
+                if (size == 0 || size > available) {
+                    size = available;
+                }
+                mDataOffset = position;
+                mNumFrames = (int) Math.min(Integer.MAX_VALUE, size / (2 * mChannels));
+                return true;
+            }
+            position += size + (size & 1);
+        }
+        return false;
+    }
+
+    private static int read(FileChannel channel, ByteBuffer bytes, long position, int length)
+            throws IOException {
+        bytes.clear();
+        bytes.limit(length);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) <= 0) {
+                break;
+            }
+        }
+        bytes.flip();
+        return bytes.limit();
+    }
+}
@@ -1,4 +1,4 @@
-package com.RingMake.Ringdroid.soundfile;
+package com.RingMake.audiocore;
 
 public class WAVHeader {
     private byte[] mHeader;
@@ -0,0 +1,124 @@
+package com.RingMake.audiocore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class WavWriter {
+    private static final int STAGING_SIZE = 64 * 1024;
+
+    private WavWriter() {
+    }
+
+    public static void write(SampleSource source, int startOffset, int numFrames,
+                             int sampleRate, int channels, OutputStream outputStream)
+            throws IOException {
+        write(source, startOffset, numFrames, sampleRate, channels,
+                Channels.newChannel(outputStream));
+    }
+
+    // Writes numFrames frames of source, starting at sample index startOffset, as a 16 bit
+    // PCM WAV stream. Frames past the end of source are written as silence.
+    // Mono samples that source can expose as bytes go out as one gather write of the header
+    // and a slice of the decoded buffer. Anything else is staged through a single direct
+    // buffer, where stereo frames are swapped in place.
+    public static void write(SampleSource source, int startOffset, int numFrames,
+                             int sampleRate, int channels, WritableByteChannel out)
+            throws IOException {
+        ByteBuffer header =
+                ByteBuffer.wrap(WAVHeader.getWAVHeader(sampleRate, channels, numFrames));
+        int numSamples = numFrames * channels;
+        int available = Math.max(0, Math.min(numSamples, source.size() - startOffset));
+
+        ByteBuffer bytes = (channels == 2 || available == 0) ?
+                null : source.getBytes(startOffset, available);
+        if (bytes != null) {
+            writeFully(out, header, bytes);
+            header = null;
+            numSamples -= available;
+            available = 0;
+        }
+        if (header != null) {
+            writeFully(out, header, null);
+        }
+        if (numSamples == 0) {
+            return;
+        }
+
+        // Whole stereo frames only, so a frame is never split across two swaps.
+        ByteBuffer staging = ByteBuffer.allocateDirect(
+                Math.min(STAGING_SIZE, (numSamples + 1) / 2 * 4)).order(ByteOrder.LITTLE_ENDIAN);
+        int stagingSamples = staging.capacity() / 2;
+        ShortBuffer stagingSamplesView = staging.asShortBuffer();
+        IntBuffer stagingFrames = staging.asIntBuffer();
+        short[] chunk = null;
+        int index = startOffset;
+        while (available > 0) {
+            int count = Math.min(available, stagingSamples);
+            staging.clear();
+            ByteBuffer sourceBytes = source.getBytes(index, count);
+            if (sourceBytes != null) {
+                staging.put(sourceBytes);
+            } else {
+                if (chunk == null) {
+                    chunk = new short[stagingSamples];
+                }
+                source.get(index, chunk, 0, count);
+                stagingSamplesView.clear();
+                stagingSamplesView.put(chunk, 0, count);
+                staging.position(count * 2);
+            }
+            staging.flip();
+            if (channels == 2) {
+                swapLeftRightChannels(stagingFrames, count / 2);
+            }
+            writeFully(out, staging, null);
+            index += count;
+            available -= count;
+            numSamples -= count;
+        }
+
+        staging.clear();
+        while (staging.hasRemaining()) {
+            staging.put((byte) 0);
+        }
+        while (numSamples > 0) {
+            int count = Math.min(numSamples, stagingSamples);
+            staging.position(0).limit(count * 2);
+            writeFully(out, staging, null);
+            numSamples -= count;
+        }
+    }
+
+    // Each little-endian stereo frame is one int with the left sample in the low half.
+    private static void swapLeftRightChannels(IntBuffer frames, int numFrames) {
+        for (int i = 0; i < numFrames; i++) {
+            frames.put(i, Integer.rotateLeft(frames.get(i), 16));
+        }
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer first, ByteBuffer second)
+            throws IOException {
+        if (second != null && out instanceof GatheringByteChannel) {
+            ByteBuffer[] buffers = new ByteBuffer[] {first, second};
+            while (second.hasRemaining()) {
+                ((GatheringByteChannel) out).write(buffers);
+            }
+            return;
+        }
+        while (first.hasRemaining()) {
+            out.write(first);
+        }
+        if (second != null) {
+            while (second.hasRemaining()) {
+                out.write(second);
+            }
+        }
+    }
+}
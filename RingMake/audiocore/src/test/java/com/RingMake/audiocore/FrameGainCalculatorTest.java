@@ -0,0 +1,37 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FrameGainCalculatorTest {
+    @Test
+    public void monoGainIsRootOfPeakPerFrame() throws Exception {
+        FrameGainCalculator calculator = new FrameGainCalculator(1, 4, 0);
+        calculator.add(new short[] {1, -100, 3, 4, 25, 0, -16, 9, -32768}, 0, 9);
+        calculator.finish();
+        assertArrayEquals(new int[] {10, 5, 181}, calculator.getFrameGains());
+    }
+
+    @Test
+    public void stereoAveragesChannelsAcrossSplitBuffers() throws Exception {
+        short[] samples = new short[2 * 40];
+        samples[2 * 3] = 200;
+        samples[2 * 3 + 1] = -200;
+        samples[2 * 25] = 50;
+        samples[2 * 25 + 1] = 0;
+        ByteBuffer bytes = ByteBuffer.allocate(samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(samples);
+
+        FrameGainCalculator calculator = new FrameGainCalculator(2, 16, 0);
+        bytes.limit(22);
+        calculator.add(bytes);
+        bytes.position(22).limit(bytes.capacity());
+        calculator.add(bytes);
+        calculator.finish();
+        assertArrayEquals(new int[] {14, 5, 0}, calculator.getFrameGains());
+    }
+}
@@ -0,0 +1,143 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class MP3FileTest {
+    // MPEG 1 layer III, 128 kbps, 44.1 kHz, no CRC, joint stereo: 417 or 418 bytes per frame.
+    private static final int HEADER = 0xFFFB9040;
+    private static final int NUM_FRAMES = 200;
+
+    @Test
+    public void indexesFramesBehindTagsAndXingFrame() throws Exception {
+        File input = writeStream();
+        try {
+            MP3File mp3 = MP3File.open(input);
+            assertEquals(NUM_FRAMES, mp3.getNumFrames());
+            assertEquals(44100, mp3.getSampleRate());
+            assertEquals(1152, mp3.getSamplesPerFrame());
+        } finally {
+            input.delete();
+        }
+    }
+
+    // Frame 100 borrows 300 bytes through the bit reservoir, so frame 99 comes along and is
+    // declared as encoder delay.
+    @Test
+    public void copiesSelectedFramesWithReservoirLeadIn() throws Exception {
+        File input = writeStream();
+        File output = File.createTempFile("mp3file", ".mp3");
+        try {
+            MP3File mp3 = MP3File.open(input);
+            double startTime = 100 * 1152 / 44100.0;
+            double endTime = 150 * 1152 / 44100.0;
+            mp3.write(output, startTime, endTime);
+
+            ByteBuffer bytes = TestFiles.read(output);
+            int infoLength = 208;  // 64 kbps is the smallest 44.1 kHz frame the tag fits in.
+            assertEquals(0xFFFB5040, bytes.getInt(0));
+            assertEquals(0x496e666f, bytes.getInt(36));  // "Info"
+            assertEquals(51, bytes.getInt(44));
+            assertEquals(bytes.limit(), bytes.getInt(48));
+            int lame = 36 + 120;
+            int delay =
+                    ((bytes.get(lame + 21) & 0xFF) << 4) | ((bytes.get(lame + 22) & 0xF0) >> 4);
+            assertEquals(1152, delay);
+
+            MP3File copy = MP3File.open(output);
+            assertEquals(51, copy.getNumFrames());
+            ByteBuffer source = TestFiles.read(input);
+            int offset = infoLength;
+            for (int frame = 99; frame < 150; frame++) {
+                int frameStart = frameOffset(frame);
+                int length = frameLength(frame);
+                for (int i = 0; i < length; i++) {
+                    assertEquals(source.get(frameStart + i), bytes.get(offset + i));
+                }
+                offset += length;
+            }
+            assertEquals(bytes.limit(), offset);
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void shortSelectionsStayReadable() throws Exception {
+        File input = writeStream();
+        File output = File.createTempFile("mp3file", ".mp3");
+        try {
+            MP3File mp3 = MP3File.open(input);
+            double lastFrame = (NUM_FRAMES - 1) * 1152 / 44100.0;
+            mp3.write(output, lastFrame, lastFrame);
+            MP3File copy = MP3File.open(output);
+            assertEquals(2, copy.getNumFrames());
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void rejectsNonMpegData() throws Exception {
+        File input = TestFiles.write(".mp3", new byte[4096]);
+        try {
+            assertNull(MP3File.open(input));
+        } finally {
+            input.delete();
+        }
+    }
+
+    private static int frameLength(int frame) {
+        return 417 + (frame % 3 == 0 ? 1 : 0);
+    }
+
+    // Offset of an audio frame in the stream written by writeStream().
+    private static int frameOffset(int frame) {
+        int offset = 10 + 100 + 417;
+        for (int i = 0; i < frame; i++) {
+            offset += frameLength(i);
+        }
+        return offset;
+    }
+
+    // An ID3v2 tag, a Xing frame, NUM_FRAMES frames of noise and an ID3v1 tag.
+    private static File writeStream() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(new byte[] {'I', 'D', '3', 3, 0, 0, 0, 0, 0, 100});
+        stream.write(new byte[100]);
+
+        ByteBuffer xing = ByteBuffer.allocate(417);
+        xing.putInt(HEADER);
+        xing.position(36);
+        xing.put("Xing".getBytes());
+        stream.write(xing.array());
+
+        for (int frame = 0; frame < NUM_FRAMES; frame++) {
+            int length = frameLength(frame);
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            bytes.putInt(HEADER | (length == 418 ? 0x200 : 0));
+            int mainDataBegin = (frame == 100) ? 300 : 0;
+            bytes.put((byte) (mainDataBegin >> 1));
+            bytes.put((byte) ((mainDataBegin & 1) << 7));
+            while (bytes.hasRemaining()) {
+                bytes.put((byte) (frame * 31 + bytes.position()));
+            }
+            stream.write(bytes.array());
+        }
+        byte[] id3v1 = new byte[128];
+        id3v1[0] = 'T';
+        id3v1[1] = 'A';
+        id3v1[2] = 'G';
+        stream.write(id3v1);
+
+        return TestFiles.write(".mp3", stream.toByteArray());
+    }
+}
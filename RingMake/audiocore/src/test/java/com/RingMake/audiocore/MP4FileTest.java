@@ -0,0 +1,108 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MP4FileTest {
+    private static final int NUM_FRAMES = 400;
+
+    @Test
+    public void copiesSelectedAccessUnits() throws Exception {
+        File input = writeStream();
+        File output = File.createTempFile("mp4file", ".m4a");
+        try {
+            MP4File mp4 = MP4File.open(input);
+            assertEquals(NUM_FRAMES, mp4.getNumFrames());
+            assertEquals(44100, mp4.getSampleRate());
+            assertEquals(2, mp4.getChannels());
+            assertTrue(mp4.isComplete());
+
+            double startTime = 100 * 1024 / 44100.0;
+            double endTime = 250 * 1024 / 44100.0;
+            mp4.write(output, startTime, endTime);
+
+            MP4File copy = MP4File.open(output);
+            assertEquals(150, copy.getNumFrames());
+            ByteBuffer bytes = TestFiles.read(output);
+            ByteBuffer source = TestFiles.read(input);
+            int offset = bytes.limit();
+            for (int frame = 249; frame >= 100; frame--) {
+                offset -= frameSize(frame);
+            }
+            int sourceOffset = sourceOffset(source, 100);
+            for (int i = offset; i < bytes.limit(); i++) {
+                assertEquals(source.get(sourceOffset++), bytes.get(i));
+            }
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void detectsTruncatedMdat() throws Exception {
+        File input = writeStream();
+        try {
+            TestFiles.truncate(input, 100);
+            MP4File mp4 = MP4File.open(input);
+            assertEquals(NUM_FRAMES, mp4.getNumFrames());
+            assertFalse(mp4.isComplete());
+        } finally {
+            input.delete();
+        }
+    }
+
+    @Test
+    public void rejectsFilesWithoutMoov() throws Exception {
+        File input = TestFiles.write(".m4a", new byte[4096]);
+        try {
+            assertNull(MP4File.open(input));
+        } finally {
+            input.delete();
+        }
+    }
+
+    private static int frameSize(int frame) {
+        return 200 + (frame * 53) % 250;
+    }
+
+    // Offset of an access unit in the stream written by writeStream().
+    private static int sourceOffset(ByteBuffer source, int frame) {
+        int offset = TestFiles.findAtom(source, "mdat") + 8 + 2;
+        for (int i = 0; i < frame; i++) {
+            offset += frameSize(i);
+        }
+        return offset;
+    }
+
+    // The codec config followed by NUM_FRAMES access units, written by MP4Writer.
+    private static File writeStream() throws Exception {
+        File file = File.createTempFile("mp4file", ".m4a");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MP4Writer writer =
+                    new MP4Writer(raf.getChannel(), 44100, 2, 128000, NUM_FRAMES + 1);
+            writer.writeFrame(ByteBuffer.wrap(new byte[]{0x12, 0x10}));
+            for (int frame = 0; frame < NUM_FRAMES; frame++) {
+                ByteBuffer bytes = ByteBuffer.allocate(frameSize(frame));
+                while (bytes.hasRemaining()) {
+                    bytes.put((byte) (frame * 31 + bytes.position()));
+                }
+                bytes.flip();
+                writer.writeFrame(bytes);
+            }
+            writer.finish();
+        } finally {
+            raf.close();
+        }
+        return file;
+    }
+}
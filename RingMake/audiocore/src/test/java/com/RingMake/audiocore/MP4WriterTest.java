@@ -0,0 +1,85 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MP4WriterTest {
+    @Test
+    public void streamedFileDescribesEveryFrame() throws Exception {
+        File file = File.createTempFile("mp4writer", ".m4a");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int[] sizes = new int[1500];
+            sizes[0] = 2;
+            for (int i = 1; i < sizes.length; i++) {
+                sizes[i] = 100 + (i * 37) % 300;
+            }
+            MP4Writer writer =
+                    new MP4Writer(raf.getChannel(), 44100, 2, 128000, sizes.length + 10);
+            for (int i = 0; i < sizes.length; i++) {
+                assertTrue(writer.writeFrame(frame(i, sizes[i])));
+            }
+            writer.finish();
+
+            ByteBuffer bytes = TestFiles.read(file);
+
+            // Top level atoms cover the file exactly.
+            int offset = 0;
+            while (offset < bytes.limit()) {
+                offset += bytes.getInt(offset);
+            }
+            assertEquals(bytes.limit(), offset);
+
+            int stsz = TestFiles.findAtom(bytes, "stsz");
+            assertEquals(sizes.length, bytes.getInt(stsz + 16));
+            int stco = TestFiles.findAtom(bytes, "stco");
+            int dataOffset = bytes.getInt(stco + 16);
+            for (int i = 0; i < sizes.length; i++) {
+                assertEquals(sizes[i], bytes.getInt(stsz + 20 + 4 * i));
+                assertEquals((byte) i, bytes.get(dataOffset));
+                assertEquals((byte) i, bytes.get(dataOffset + sizes[i] - 1));
+                dataOffset += sizes[i];
+            }
+            assertEquals(bytes.limit(), dataOffset);
+            int mdat = TestFiles.findAtom(bytes, "mdat");
+            assertEquals(bytes.limit() - mdat, bytes.getInt(mdat));
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void dropsFramesPastTheReservedCount() throws Exception {
+        File file = File.createTempFile("mp4writer", ".m4a");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            MP4Writer writer = new MP4Writer(raf.getChannel(), 8000, 1, 64000, 3);
+            assertTrue(writer.writeFrame(frame(0, 2)));
+            assertTrue(writer.writeFrame(frame(1, 10)));
+            assertTrue(writer.writeFrame(frame(2, 10)));
+            assertFalse(writer.writeFrame(frame(3, 10)));
+            writer.finish();
+            assertEquals(3, writer.getNumFrames());
+        } finally {
+            raf.close();
+            file.delete();
+        }
+    }
+
+    private static ByteBuffer frame(int index, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        while (frame.hasRemaining()) {
+            frame.put((byte) index);
+        }
+        frame.flip();
+        return frame;
+    }
+}
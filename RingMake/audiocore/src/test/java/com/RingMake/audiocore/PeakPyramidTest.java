@@ -0,0 +1,35 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+
+public class PeakPyramidTest {
+    @Test
+    public void parallelNormalizationMatchesSequential() throws Exception {
+        int numFrames = 5 * PeakNormalizer.CHUNK_FRAMES + 7;
+        int[] frameGains = new int[numFrames];
+        Random random = new Random(1);
+        for (int i = 0; i < numFrames; i++) {
+            frameGains[i] = random.nextInt(400);
+        }
+
+        PeakPyramid sequential = PeakPyramid.fromFrameGains(frameGains, numFrames);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            PeakPyramid parallel = PeakPyramid.fromFrameGains(frameGains, numFrames, pool);
+            for (int i = 0; i < numFrames; i++) {
+                assertEquals(sequential.get(i), parallel.get(i));
+            }
+            for (int width = 1; width < numFrames; width *= 3) {
+                assertEquals(sequential.getMax(width, 2 * width),
+                        parallel.getMax(width, 2 * width));
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
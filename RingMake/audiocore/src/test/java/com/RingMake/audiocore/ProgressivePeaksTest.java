@@ -0,0 +1,74 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProgressivePeaksTest {
+    private static int[] randomGains(int numFrames) {
+        int[] frameGains = new int[numFrames];
+        Random random = new Random(2);
+        for (int i = 0; i < numFrames; i++) {
+            frameGains[i] = random.nextInt(400);
+        }
+        return frameGains;
+    }
+
+    @Test
+    public void singleUpdateMatchesFinishedFile() throws Exception {
+        int numFrames = 3000;
+        int[] frameGains = randomGains(numFrames);
+        ProgressivePeaks progressive = new ProgressivePeaks();
+        assertEquals(0, progressive.update(frameGains, numFrames));
+
+        PeakPyramid expected = PeakPyramid.fromFrameGains(frameGains, numFrames);
+        PeakPyramid peaks = progressive.getPeaks();
+        assertEquals(numFrames, peaks.getNumFrames());
+        for (int i = 0; i < numFrames; i++) {
+            assertEquals(expected.get(i), peaks.get(i));
+        }
+    }
+
+    @Test
+    public void batchesOnlyChangeFramesFromTheReturnedOne() throws Exception {
+        int numFrames = 20000;
+        int[] frameGains = randomGains(numFrames);
+        ProgressivePeaks progressive = new ProgressivePeaks();
+        int[] previous = new int[0];
+        int numFullPasses = 0;
+        for (int n = 1; n <= numFrames; n += 1 + n / 7) {
+            // The decoder hands out a longer copy of the gains every time it grows them.
+            int from = progressive.update(Arrays.copyOf(frameGains, n + 10), n);
+            PeakPyramid peaks = progressive.getPeaks();
+            assertEquals(n, peaks.getNumFrames());
+            assertTrue(from <= previous.length);
+            if (from == 0) {
+                numFullPasses++;
+            }
+            for (int i = 0; i < from; i++) {
+                assertEquals(previous[i], peaks.get(i));
+            }
+            int[] heights = new int[n];
+            for (int i = 0; i < n; i++) {
+                heights[i] = peaks.get(i);
+            }
+            for (int width = 1; width <= n; width = 2 * width + 1) {
+                for (int start = 0; start + width <= n; start += width) {
+                    int max = 0;
+                    for (int i = start; i < start + width; i++) {
+                        max = Math.max(max, heights[i]);
+                    }
+                    assertTrue(peaks.getMax(start, start + width) >= max);
+                }
+            }
+            assertEquals(heights[n - 1], peaks.getMax(n - 1, n));
+            previous = heights;
+        }
+        // Full passes only happen each time the file doubles.
+        assertTrue(numFullPasses <= 16);
+    }
+}
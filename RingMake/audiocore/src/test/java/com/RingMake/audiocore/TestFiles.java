@@ -0,0 +1,58 @@
+package com.RingMake.audiocore;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+// File and atom helpers shared by the container tests.
+class TestFiles {
+    private TestFiles() {
+    }
+
+    // A temporary file holding bytes.
+    static File write(String suffix, byte[] bytes) throws Exception {
+        File file = File.createTempFile("audiocore", suffix);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // The whole file, big endian.
+    static ByteBuffer read(File file) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer bytes = ByteBuffer.allocate((int) in.length());
+            in.getChannel().read(bytes, 0);
+            bytes.flip();
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    static void truncate(File file, int numBytes) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - numBytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    // Position of the size field of the first MP4 atom of the given type.
+    static int findAtom(ByteBuffer bytes, String type) {
+        byte[] name = type.getBytes();
+        for (int i = 4; i + 4 <= bytes.limit(); i++) {
+            if (bytes.get(i) == name[0] && bytes.get(i + 1) == name[1]
+                    && bytes.get(i + 2) == name[2] && bytes.get(i + 3) == name[3]) {
+                return i - 4;
+            }
+        }
+        throw new AssertionError("No " + type + " atom");
+    }
+}
@@ -0,0 +1,92 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WAVFileTest {
+    @Test
+    public void copiesSelectedFramesBehindFreshHeader() throws Exception {
+        // A LIST chunk with an odd size sits between fmt and data.
+        File input = writeWav(8000, 2, 1000, 16, new byte[] {'L', 'I', 'S', 'T', 3, 0, 0, 0,
+                'a', 'b', 'c', 0});
+        File output = File.createTempFile("wavfile", ".wav");
+        try {
+            WAVFile wav = WAVFile.open(input);
+            assertEquals(8000, wav.getSampleRate());
+            assertEquals(2, wav.getChannels());
+            assertEquals(1000, wav.getNumFrames());
+            assertTrue(wav.isComplete());
+
+            wav.write(output, 100 / 8000.0, 350 / 8000.0);
+            ByteBuffer bytes = TestFiles.read(output).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(44 + 250 * 4, bytes.limit());
+            assertEquals(bytes.limit() - 8, bytes.getInt(4));
+            assertEquals(250 * 4, bytes.getInt(40));
+
+            WAVFile copy = WAVFile.open(output);
+            assertEquals(250, copy.getNumFrames());
+            for (int i = 0; i < 250 * 2; i++) {
+                assertEquals((short) (200 + i), bytes.getShort(44 + 2 * i));
+            }
+        } finally {
+            input.delete();
+            output.delete();
+        }
+    }
+
+    @Test
+    public void detectsTruncatedDataChunk() throws Exception {
+        File input = writeWav(8000, 1, 1000, 16, new byte[0]);
+        try {
+            TestFiles.truncate(input, 100);
+            WAVFile wav = WAVFile.open(input);
+            assertEquals(950, wav.getNumFrames());
+            assertFalse(wav.isComplete());
+        } finally {
+            input.delete();
+        }
+    }
+
+    @Test
+    public void rejectsOtherSampleFormats() throws Exception {
+        File input = writeWav(8000, 1, 100, 8, new byte[0]);
+        try {
+            assertNull(WAVFile.open(input));
+        } finally {
+            input.delete();
+        }
+    }
+
+    // Sample i of the data chunk is (short) i.
+    private static File writeWav(int sampleRate, int channels, int numFrames, int bits,
+                                 byte[] extraChunk) throws Exception {
+        int blockAlign = channels * bits / 8;
+        int dataSize = numFrames * blockAlign;
+        ByteBuffer bytes = ByteBuffer.allocate(44 + extraChunk.length + dataSize)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        bytes.put("RIFF".getBytes()).putInt(bytes.capacity() - 8).put("WAVE".getBytes());
+        bytes.put("fmt ".getBytes()).putInt(16);
+        bytes.putShort((short) 1).putShort((short) channels).putInt(sampleRate)
+                .putInt(sampleRate * blockAlign).putShort((short) blockAlign)
+                .putShort((short) bits);
+        bytes.put(extraChunk);
+        bytes.put("data".getBytes()).putInt(dataSize);
+        for (int i = 0; bytes.hasRemaining(); i++) {
+            if (bits == 16) {
+                bytes.putShort((short) i);
+            } else {
+                bytes.put((byte) i);
+            }
+        }
+
+        return TestFiles.write(".wav", bytes.array());
+    }
+}
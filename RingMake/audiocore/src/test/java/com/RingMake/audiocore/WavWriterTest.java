@@ -0,0 +1,110 @@
+package com.RingMake.audiocore;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class WavWriterTest {
+    private static SampleSource samples(short... values) {
+        return new ShortBufferSampleStore(ShortBuffer.wrap(values));
+    }
+
+    private static final int HEADER_SIZE = WAVHeader.getWAVHeader(8000, 1, 0).length;
+
+    private static ShortBuffer body(byte[] wav) {
+        return ByteBuffer.wrap(wav, HEADER_SIZE, wav.length - HEADER_SIZE).slice()
+                .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    @Test
+    public void writesHeaderAndMonoSlice() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WavWriter.write(samples((short) 1, (short) 2, (short) 3, (short) 4), 1, 2, 8000, 1, out);
+        byte[] wav = out.toByteArray();
+
+        assertEquals(HEADER_SIZE + 4, wav.length);
+        assertEquals("RIFF", new String(wav, 0, 4, "US-ASCII"));
+        ShortBuffer body = body(wav);
+        assertEquals(2, body.get(0));
+        assertEquals(3, body.get(1));
+    }
+
+    @Test
+    public void padsPastTheEndWithSilence() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WavWriter.write(samples((short) 5, (short) 6), 1, 3, 8000, 1, out);
+        ShortBuffer body = body(out.toByteArray());
+
+        assertEquals(3, body.remaining());
+        assertEquals(6, body.get(0));
+        assertEquals(0, body.get(1));
+        assertEquals(0, body.get(2));
+    }
+
+    // Stereo frames keep the left/right swap SoundFile has always applied on export.
+    @Test
+    public void swapsStereoChannels() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WavWriter.write(samples((short) 10, (short) 20, (short) 30, (short) 40), 0, 2, 44100, 2,
+                out);
+        ShortBuffer body = body(out.toByteArray());
+
+        assertEquals(20, body.get(0));
+        assertEquals(10, body.get(1));
+        assertEquals(40, body.get(2));
+        assertEquals(30, body.get(3));
+    }
+
+    // Byte-backed stores take the gather/staging paths and must produce the same file.
+    @Test
+    public void byteBackedStoreWritesSameFileThroughChannel() throws Exception {
+        short[] values = new short[3 * 40000 + 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (short) (i * 7919);
+        }
+        ByteBuffer bytes = ByteBuffer.allocateDirect(values.length * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asShortBuffer().put(values);
+
+        for (int channels = 1; channels <= 2; channels++) {
+            int numFrames = values.length / channels - 3;
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            WavWriter.write(samples(values), 2 * channels, numFrames + 5, 22050, channels,
+                    expected);
+
+            File file = File.createTempFile("wavwriter", ".wav");
+            try {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    WavWriter.write(new ShortBufferSampleStore(bytes), 2 * channels,
+                            numFrames + 5, 22050, channels, out.getChannel());
+                } finally {
+                    out.close();
+                }
+                assertArrayEquals(expected.toByteArray(), readFile(file));
+            } finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+}
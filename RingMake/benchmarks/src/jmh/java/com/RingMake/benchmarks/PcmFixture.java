@@ -0,0 +1,111 @@
+package com.RingMake.benchmarks;
+
+import com.RingMake.audiocore.SampleSource;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// Synthetic interleaved 16 bit PCM: one second of a decaying tone mixed with noise, repeated
+// for the whole duration. Only that second is held in memory, so an hour of 96 kHz stereo
+// costs the same heap as ten seconds of 8 kHz mono.
+@State(Scope.Benchmark)
+public class PcmFixture implements SampleSource {
+    public static final int SAMPLES_PER_FRAME = 1024;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    @Param({"8000", "44100", "96000"})
+    public int sampleRate;
+
+    @Param({"10", "600", "3600"})
+    public int seconds;
+
+    private short[] mSecond;
+    private ByteBuffer mSecondBytes;
+    private int mNumSamples;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(sampleRate * 31 + channels);
+        mSecond = new short[sampleRate * channels];
+        for (int i = 0; i < sampleRate; i++) {
+            double envelope = 1.0 - (double) i / sampleRate;
+            double tone = Math.sin(2 * Math.PI * 440 * i / sampleRate) * envelope;
+            for (int c = 0; c < channels; c++) {
+                double value = 0.7 * tone + 0.1 * (random.nextDouble() * 2 - 1);
+                mSecond[i * channels + c] = (short) (value * Short.MAX_VALUE);
+            }
+        }
+        // MediaCodec hands out direct little-endian buffers.
+        mSecondBytes = ByteBuffer.allocateDirect(mSecond.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        mSecondBytes.asShortBuffer().put(mSecond);
+        mNumSamples = mSecond.length * seconds;
+    }
+
+    public long getNumBytes() {
+        return (long) mNumSamples * 2;
+    }
+
+    public int getNumFrames() {
+        return (mNumSamples / channels + SAMPLES_PER_FRAME - 1) / SAMPLES_PER_FRAME;
+    }
+
+    // One second of PCM; feeding it seconds times replays the whole fixture.
+    public ByteBuffer getSecondBytes() {
+        return mSecondBytes;
+    }
+
+    // Encoded AAC frame sizes around a 128 kbps average, as SoundFile.WriteFile collects them:
+    // the 2 byte codec config first, then one entry per frame.
+    public int[] newFrameSizes() {
+        Random random = new Random(seconds);
+        int[] frameSizes = new int[getNumFrames() + 1];
+        int average = 128000 / 8 * SAMPLES_PER_FRAME / sampleRate;
+        frameSizes[0] = 2;
+        for (int i = 1; i < frameSizes.length; i++) {
+            frameSizes[i] = average / 2 + random.nextInt(average);
+        }
+        return frameSizes;
+    }
+
+    public int[] newFrameGains() {
+        Random random = new Random(seconds);
+        int[] frameGains = new int[getNumFrames()];
+        for (int i = 0; i < frameGains.length; i++) {
+            frameGains[i] = random.nextInt(182);
+        }
+        return frameGains;
+    }
+
+    public int size() {
+        return mNumSamples;
+    }
+
+    public short get(int index) {
+        return mSecond[index % mSecond.length];
+    }
+
+    public void get(int index, short[] dst, int offset, int length) {
+        while (length > 0) {
+            int from = index % mSecond.length;
+            int count = Math.min(length, mSecond.length - from);
+            System.arraycopy(mSecond, from, dst, offset, count);
+            index += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Samples wrap around the one stored second, so they are never contiguous bytes.
+    public ByteBuffer getBytes(int index, int length) {
+        return null;
+    }
+}
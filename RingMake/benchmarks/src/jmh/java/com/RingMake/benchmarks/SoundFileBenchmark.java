@@ -0,0 +1,85 @@
+package com.RingMake.benchmarks;
+
+import com.RingMake.audiocore.FrameGainCalculator;
+import com.RingMake.audiocore.MP4Header;
+import com.RingMake.audiocore.PeakPyramid;
+import com.RingMake.audiocore.WavWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// The hot paths of SoundFile and WaveformView. Run with ./gradlew :benchmarks:jmh; the gc
+// profiler adds gc.alloc.rate.norm, the bytes allocated per operation.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class SoundFileBenchmark {
+    // Counts what WavWriter produces without touching the disk.
+    static class CountingOutputStream extends OutputStream {
+        long mCount;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
+
+    private int[] mFrameSizes;
+    private int[] mFrameGains;
+
+    @Setup
+    public void setUp(PcmFixture fixture) {
+        mFrameSizes = fixture.newFrameSizes();
+        mFrameGains = fixture.newFrameGains();
+    }
+
+    // The gain pass SoundFile.ReadFile runs over every decoded output buffer.
+    @Benchmark
+    public int frameGains(PcmFixture fixture, Megabytes megabytes) {
+        FrameGainCalculator calculator = new FrameGainCalculator(
+                fixture.channels, PcmFixture.SAMPLES_PER_FRAME, fixture.getNumFrames());
+        for (int i = 0; i < fixture.seconds; i++) {
+            calculator.add(fixture.getSecondBytes());
+        }
+        calculator.finish();
+        megabytes.add(fixture.getNumBytes());
+        return calculator.getFrameGains()[calculator.getNumFrames() - 1];
+    }
+
+    // SoundFile.WriteWAVFile over the whole fixture.
+    @Benchmark
+    public long writeWav(PcmFixture fixture, Megabytes megabytes) throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        WavWriter.write(fixture, 0, fixture.size() / fixture.channels, fixture.sampleRate,
+                fixture.channels, out);
+        megabytes.add(fixture.getNumBytes());
+        return out.mCount;
+    }
+
+    // The moov box SoundFile.WriteFile builds once every frame has been encoded.
+    @Benchmark
+    public byte[] mp4Header(PcmFixture fixture) {
+        return MP4Header.getMP4Header(
+                fixture.sampleRate, fixture.channels, mFrameSizes, 128000);
+    }
+
+    // Formerly WaveformView.computeDoublesForAllZoomLevels.
+    @Benchmark
+    public PeakPyramid peakPyramid() {
+        return PeakPyramid.fromFrameGains(mFrameGains, mFrameGains.length);
+    }
+}